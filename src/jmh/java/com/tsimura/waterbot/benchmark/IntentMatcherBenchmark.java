@@ -0,0 +1,51 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.tsimura.waterbot.conversation.IntentMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.tsimura.waterbot.Constants.*;
+
+/**
+ * Intent of one free text message: the compiled matcher against the exact switch on the lowercased
+ * text it replaced. Run with {@code -prof gc} to check the matcher does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IntentMatcherBenchmark {
+
+    @Param({"hi", "Start please", "Sorry, I did not get what this bot is about, could you explain it to me?"})
+    private String message;
+
+    private IntentMatcher matcher;
+
+    @Setup
+    public void setUp() {
+        matcher = new IntentMatcher();
+    }
+
+    @Benchmark
+    public String matcher() {
+        return matcher.match(message);
+    }
+
+    @Benchmark
+    public String exactSwitch() {
+        switch (message.toLowerCase()) {
+            case "hi":
+            case "hello":
+            case "hey":
+                return INTENT_HELLO;
+            case "start":
+                return INTENT_START;
+            default:
+                return INTENT_DEFAULT;
+        }
+    }
+
+}
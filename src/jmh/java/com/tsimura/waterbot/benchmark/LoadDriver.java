@@ -0,0 +1,166 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.tsimura.waterbot.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test against a running bot started with the graph-stub profile. Sends signed postback
+ * webhooks from a new sender each at a fixed rate, then reads the time of the last outbound send to every
+ * sender from the stand-in and reports webhook throughput and latency percentiles from webhook to last send.
+ *
+ * <p>Run with {@code mvn -P benchmark test-compile exec:exec -Dbenchmark.main=com.tsimura.waterbot.benchmark.LoadDriver
+ * -Dbenchmark.args="rate=200 durationSeconds=60"}. Arguments are key=value pairs, see {@link #DEFAULTS}.
+ */
+public final class LoadDriver {
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("url", "http://localhost:8080/callback");
+        DEFAULTS.put("standInUrl", "http://localhost:8080/graph-stub");
+        DEFAULTS.put("appSecret", Stubs.APP_SECRET);
+        DEFAULTS.put("payload", "get_started");
+        DEFAULTS.put("rate", "100");
+        DEFAULTS.put("durationSeconds", "30");
+        DEFAULTS.put("drainSeconds", "10");
+        DEFAULTS.put("threads", "64");
+    }
+
+    private LoadDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !DEFAULTS.containsKey(option[0])) {
+                throw new IllegalArgumentException("Unknown argument '" + arg + "', expected one of " + DEFAULTS.keySet());
+            }
+            options.put(option[0], option[1]);
+        }
+        String url = options.get("url");
+        String standInUrl = options.get("standInUrl");
+        String appSecret = options.get("appSecret");
+        String payload = options.get("payload");
+        int rate = Integer.parseInt(options.get("rate"));
+        int durationSeconds = Integer.parseInt(options.get("durationSeconds"));
+        int requests = rate * durationSeconds;
+
+        request("DELETE", standInUrl + "/recipients", null, null);
+
+        ExecutorService senders = Executors.newFixedThreadPool(Integer.parseInt(options.get("threads")));
+        Map<String, Long> sentAtMillis = new ConcurrentHashMap<>();
+        LatencyHistogram webhookLatency = new LatencyHistogram();
+        Map<Integer, AtomicInteger> statuses = new ConcurrentHashMap<>();
+        AtomicInteger ioErrors = new AtomicInteger();
+
+        System.out.printf("Sending %d webhooks at %d/s to %s%n", requests, rate, url);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long due = startedAt + i * intervalNanos;
+            for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+                LockSupport.parkNanos(due - now);
+            }
+            String senderId = "load-" + i;
+            String body = postback(senderId, payload);
+            String signature = Stubs.sign(body, appSecret);
+            senders.execute(() -> {
+                long requestStartedAt = System.nanoTime();
+                sentAtMillis.put(senderId, System.currentTimeMillis());
+                try {
+                    int status = request("POST", url, body, signature);
+                    statuses.computeIfAbsent(status, s -> new AtomicInteger()).incrementAndGet();
+                    webhookLatency.recordSince(requestStartedAt);
+                } catch (IOException e) {
+                    ioErrors.incrementAndGet();
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+        double elapsedSeconds = (System.nanoTime() - startedAt) / 1e9;
+
+        TimeUnit.SECONDS.sleep(Integer.parseInt(options.get("drainSeconds")));
+        JsonObject lastSends = new JsonParser().parse(get(standInUrl + "/recipients")).getAsJsonObject();
+        LatencyHistogram endToEnd = new LatencyHistogram();
+        int unanswered = 0;
+        for (Map.Entry<String, Long> sent : sentAtMillis.entrySet()) {
+            JsonElement lastSend = lastSends.get(sent.getKey());
+            if (lastSend == null) {
+                unanswered++;
+            } else {
+                endToEnd.recordNanos(TimeUnit.MILLISECONDS.toNanos(lastSend.getAsLong() - sent.getValue()));
+            }
+        }
+
+        System.out.printf("Webhooks: %d in %.1fs (%.1f/s), statuses %s, io errors %d%n",
+                webhookLatency.getCount(), elapsedSeconds, webhookLatency.getCount() / elapsedSeconds, statuses, ioErrors.get());
+        System.out.printf("Webhook response: p50 %.1fms | p99 %.1fms | max %.1fms%n",
+                webhookLatency.getPercentileMillis(0.5), webhookLatency.getPercentileMillis(0.99), webhookLatency.getMaxMillis());
+        System.out.printf("Webhook to last send: p50 %.1fms | p99 %.1fms | max %.1fms | unanswered %d%n",
+                endToEnd.getPercentileMillis(0.5), endToEnd.getPercentileMillis(0.99), endToEnd.getMaxMillis(), unanswered);
+    }
+
+    private static String postback(String senderId, String payload) {
+        return "{\"object\":\"page\",\"entry\":[{\"id\":\"" + Stubs.PAGE_ID + "\",\"time\":" + System.currentTimeMillis() + "," +
+                "\"messaging\":[{\"sender\":{\"id\":\"" + senderId + "\"},\"recipient\":{\"id\":\"" + Stubs.PAGE_ID + "\"}," +
+                "\"timestamp\":" + System.currentTimeMillis() + ",\"postback\":{\"payload\":\"" + payload + "\"}}]}]}";
+    }
+
+    private static int request(String method, String url, String body, String signature) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (signature != null) {
+            connection.setRequestProperty("X-Hub-Signature", signature);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                while (in.read() >= 0) {
+                    // drain so the connection is kept alive
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        StringBuilder body = new StringBuilder();
+        try (Reader in = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                body.append(buffer, 0, n);
+            }
+        }
+        return body.toString();
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.tsimura.waterbot.data.SubscriberState;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.BotService;
+import com.tsimura.waterbot.service.BroadcastDispatcher;
+import com.tsimura.waterbot.service.ReminderScheduler;
+import com.tsimura.waterbot.service.ShardCoordinator;
+import com.tsimura.waterbot.service.SubscriberRegistry;
+import com.tsimura.waterbot.service.UserProfileCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends every reminder of one reminder hour over a synthetic population where every user is due in the
+ * next UTC hour, polled from the timing wheel in a single run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ReminderFanOutBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int users;
+
+    @Param({"0", "200"})
+    private long sendLatencyMicros;
+
+    @Param({"16"})
+    private int concurrency;
+
+    private ShardCoordinator shardCoordinator;
+    private BroadcastDispatcher dispatcher;
+    private AttachmentRegistry attachments;
+    private BotService botService;
+    private long nextHour;
+
+    @Setup
+    public void setUp() {
+        shardCoordinator = new ShardCoordinator(null, 1, 90) {
+            @Override
+            public Set<Integer> getOwnedShards() {
+                return Collections.singleton(0);
+            }
+
+            @Override
+            public void markDelivered(Set<Integer> shards, long through) {
+            }
+        };
+        dispatcher = new BroadcastDispatcher(concurrency, 1_000_000_000d, 0, 0, TimeUnit.HOURS.toSeconds(1));
+        attachments = Stubs.attachmentRegistry();
+    }
+
+    @Setup(Level.Iteration)
+    public void createSubscribers() {
+        long now = System.currentTimeMillis();
+        nextHour = (now / TimeUnit.HOURS.toMillis(1) + 1) * TimeUnit.HOURS.toMillis(1);
+        float timezone = 10 - (int) (nextHour / TimeUnit.HOURS.toMillis(1) % 24);
+        if (timezone < -12) {
+            timezone += 24;
+        }
+
+        SubscriberRegistry subscriberRegistry = new SubscriberRegistry(null, null, 1, 1000);
+        Timestamp updatedAt = new Timestamp(now);
+        for (int i = 0; i < users; i++) {
+            subscriberRegistry.apply(new SubscriberState(Integer.toString(i), 1, timezone, 0, updatedAt));
+        }
+        ReminderScheduler reminderScheduler = new ReminderScheduler(subscriberRegistry, 30, 1000, 60);
+        reminderScheduler.start();
+        botService = new BotService(null, subscriberRegistry, reminderScheduler, null, Stubs.sendClient(sendLatencyMicros),
+                new UserProfileCache(Stubs.userProfileClient(0), 10000, 60), dispatcher, shardCoordinator,
+                attachments, new BotMetrics());
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void sendReminders() {
+        botService.sendReminders(nextHour + TimeUnit.HOURS.toMillis(1));
+    }
+
+}
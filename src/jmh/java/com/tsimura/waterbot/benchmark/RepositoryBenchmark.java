@@ -0,0 +1,86 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.tsimura.waterbot.data.BotRepository;
+import com.tsimura.waterbot.data.IntakeEvent;
+import com.tsimura.waterbot.data.IntakeTotal;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query paths of {@link BotRepository} against a local Postgres. The database is given by the
+ * {@code benchmark.jdbcUrl}, {@code benchmark.jdbcUser} and {@code benchmark.jdbcPassword} system properties
+ * and its users and intake tables are wiped and re-seeded at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({"10000", "100000"})
+    private int users;
+
+    private DataSource dataSource;
+    private BotRepository repository;
+
+    @Setup
+    public void setUp() {
+        dataSource = new DataSource();
+        dataSource.setDriverClassName("org.postgresql.Driver");
+        dataSource.setUrl(System.getProperty("benchmark.jdbcUrl", "jdbc:postgresql://localhost:5432/waterbot_bench"));
+        dataSource.setUsername(System.getProperty("benchmark.jdbcUser", "postgres"));
+        dataSource.setPassword(System.getProperty("benchmark.jdbcPassword", "postgres"));
+
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("TRUNCATE users, intake_log, intake_daily, intake_weekly");
+        repository = new BotRepository(jdbcTemplate, 1000);
+
+        List<Object[]> rows = new ArrayList<>(users);
+        List<IntakeEvent> intakes = new ArrayList<>(users);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < users; i++) {
+            rows.add(new Object[]{userId(i), 1 + i % 3, -12 + (i % 53) * 0.5f});
+            intakes.add(new IntakeEvent(userId(i), 1 + i % 8, now, LocalDate.now()));
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO users (user_id, frequency, timezone, timezone_updated_at) VALUES(?, ?, ?, now())", rows);
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(status -> {
+            repository.saveIntakes(intakes);
+            return null;
+        });
+        jdbcTemplate.execute("ANALYZE");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Benchmark
+    public IntakeTotal getWeeklyIntake() {
+        return repository.getWeeklyIntake(randomUser(), LocalDate.now());
+    }
+
+    private String randomUser() {
+        return userId(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    private static String userId(int i) {
+        return Integer.toString(1_000_000 + i);
+    }
+
+}
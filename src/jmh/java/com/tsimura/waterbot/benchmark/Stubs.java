@@ -0,0 +1,95 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.github.messenger4j.send.MessengerSendClient;
+import com.github.messenger4j.user.UserProfile;
+import com.github.messenger4j.user.UserProfileClient;
+import com.tsimura.waterbot.Constants;
+import com.tsimura.waterbot.data.AttachmentRepository;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.AttachmentUploadClient;
+import com.tsimura.waterbot.service.ResilientHttpClient;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-ins for the Graph API clients: every call just waits for the configured latency.
+ */
+final class Stubs {
+
+    static final String APP_SECRET = "benchmark-secret";
+    static final String PAGE_ID = "1000000000";
+
+    private Stubs() {
+    }
+
+    static MessengerSendClient sendClient(long latencyMicros) {
+        Object identity = new Object();
+        return (MessengerSendClient) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{MessengerSendClient.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(identity, args);
+                    }
+                    pause(latencyMicros);
+                    return null;
+                });
+    }
+
+    static UserProfileClient userProfileClient(long latencyMicros) {
+        UserProfile profile = new UserProfile("Bench", "User", null, "en_US", 0f, UserProfile.Gender.FEMALE);
+        return userId -> {
+            pause(latencyMicros);
+            return profile;
+        };
+    }
+
+    /**
+     * Registry that already knows an attachment id for every image.
+     */
+    static AttachmentRegistry attachmentRegistry() {
+        Map<String, String> attachmentIds = new HashMap<>();
+        Constants.IMAGES.forEach(url -> attachmentIds.put(url, Integer.toString(url.hashCode() & Integer.MAX_VALUE)));
+        AttachmentRegistry registry = new AttachmentRegistry(new AttachmentRepository(null) {
+            @Override
+            public Map<String, String> getAttachmentIds() {
+                return attachmentIds;
+            }
+        }, new AttachmentUploadClient("token", "http://localhost", 1000),
+                new ResilientHttpClient("http://localhost", 1000, 1000, 1, 1, 1, 1, 1000, null, new BotMetrics()));
+        registry.load();
+        return registry;
+    }
+
+    static String sign(String payload) {
+        return sign(payload, APP_SECRET);
+    }
+
+    static String sign(String payload, String appSecret) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(appSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+            StringBuilder signature = new StringBuilder("sha1=");
+            for (byte b : mac.doFinal(payload.getBytes(StandardCharsets.UTF_8))) {
+                signature.append(String.format("%02x", b));
+            }
+            return signature.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void pause(long micros) {
+        if (micros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+    }
+
+}
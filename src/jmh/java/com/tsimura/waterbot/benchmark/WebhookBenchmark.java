@@ -0,0 +1,112 @@
+package com.tsimura.waterbot.benchmark;
+
+import com.tsimura.waterbot.conversation.ConversationEngine;
+import com.tsimura.waterbot.conversation.IntentMatcher;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.BotService;
+import com.tsimura.waterbot.service.OutboundMessenger;
+import com.tsimura.waterbot.service.UserProfileCache;
+import com.tsimura.waterbot.web.CallbackExecutor;
+import com.tsimura.waterbot.web.DeliveryDeduplicator;
+import com.tsimura.waterbot.web.SignatureVerifier;
+import com.tsimura.waterbot.web.WebhookReader;
+import com.tsimura.waterbot.web.controller.MessengerCallbackHandler;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronous webhook processing of one signed callback: signature check, parsing, deduplication and
+ * dispatch to the event handler. Outbound sends are queued on the stubbed send client. Payloads cycle
+ * through a ring larger than the deduplication window so none of them is dropped as a redelivery.
+ * {@code ingestion} compares the streaming reader with the string body handed to messenger4j; run with
+ * {@code -prof gc} to see the allocation per callback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WebhookBenchmark {
+
+    @Param({"text", "quick_reply", "postback"})
+    private String event;
+
+    @Param({"0"})
+    private long sendLatencyMicros;
+
+    @Param({"streaming", "string"})
+    private String ingestion;
+
+    private OutboundMessenger messenger;
+    private CallbackExecutor callbackExecutor;
+    private MessengerCallbackHandler handler;
+    private static final int PAYLOADS = 4096;
+    private static final int DEDUP_CAPACITY = 1024;
+
+    private byte[][] payloads;
+    private String[] signatures;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        UserProfileCache profileCache = new UserProfileCache(Stubs.userProfileClient(0), 10000, 60);
+        AttachmentRegistry attachments = Stubs.attachmentRegistry();
+        BotService botService = new BotService(null, null, null, null, Stubs.sendClient(sendLatencyMicros), profileCache, null, null,
+                attachments, new BotMetrics());
+        messenger = new OutboundMessenger(Stubs.sendClient(sendLatencyMicros), 4);
+        callbackExecutor = new CallbackExecutor(1, 1, 0);
+        SignatureVerifier signatureVerifier = new SignatureVerifier(Stubs.APP_SECRET);
+        handler = new MessengerCallbackHandler(Stubs.APP_SECRET, "verify-token", false, "streaming".equals(ingestion),
+                new ConversationEngine(botService, messenger, attachments), new IntentMatcher(), signatureVerifier, callbackExecutor,
+                new DeliveryDeduplicator(DEDUP_CAPACITY, 60), new WebhookReader(signatureVerifier, 1024 * 1024), new BotMetrics());
+
+        payloads = new byte[PAYLOADS][];
+        signatures = new String[PAYLOADS];
+        for (int i = 0; i < PAYLOADS; i++) {
+            String payload = payload(event, i);
+            payloads[i] = payload.getBytes(StandardCharsets.UTF_8);
+            signatures[i] = Stubs.sign(payload);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        messenger.shutdown();
+        callbackExecutor.shutdown();
+    }
+
+    @Benchmark
+    public ResponseEntity<Void> handleCallback() throws IOException {
+        int i = next++ & (PAYLOADS - 1);
+        return handler.handleCallback(new ByteArrayInputStream(payloads[i]), signatures[i]);
+    }
+
+    static String payload(String event, int sequence) {
+        String messaging;
+        switch (event) {
+            case "text":
+                messaging = "\"message\":{\"mid\":\"mid.1457764197618:" + sequence + "\",\"seq\":" + sequence + ",\"text\":\"hi\"}";
+                break;
+            case "quick_reply":
+                messaging = "\"message\":{\"mid\":\"mid.1457764197618:" + sequence + "\",\"seq\":" + sequence + ",\"text\":\"Let's Start!\"," +
+                        "\"quick_reply\":{\"payload\":\"start\"}}";
+                break;
+            case "postback":
+                messaging = "\"postback\":{\"payload\":\"get_started\"}";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event " + event);
+        }
+        return "{\"object\":\"page\",\"entry\":[{\"id\":\"" + Stubs.PAGE_ID + "\",\"time\":1458692752478,\"messaging\":[{" +
+                "\"sender\":{\"id\":\"1254459154682919\"},\"recipient\":{\"id\":\"" + Stubs.PAGE_ID + "\"}," +
+                "\"timestamp\":" + (1458692752478L + sequence) + "," + messaging + "}]}]}";
+    }
+
+}
@@ -3,12 +3,16 @@ package com.tsimura.waterbot;
 import com.github.messenger4j.MessengerPlatform;
 import com.github.messenger4j.send.MessengerSendClient;
 import com.github.messenger4j.user.UserProfileClient;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.metrics.GraphApiMetricsAspect;
+import com.tsimura.waterbot.service.ResilientHttpClient;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @Slf4j
 @SpringBootApplication
@@ -20,14 +24,35 @@ public class BotApplication {
 	}
 
 	@Bean
-	public MessengerSendClient messengerSendClient(@Value("${messenger4j.pageAccessToken}") String pageAccessToken) {
+	public MessengerSendClient messengerSendClient(@Value("${messenger4j.pageAccessToken}") String pageAccessToken,
+												   ResilientHttpClient httpClient,
+												   BotMetrics metrics) {
 		log.debug("Initializing MessengerSendClient - pageAccessToken: {}", pageAccessToken);
-		return MessengerPlatform.newSendClientBuilder(pageAccessToken).build();
+		return GraphApiMetricsAspect.advise(MessengerPlatform.newSendClientBuilder(pageAccessToken)
+				.httpClient(httpClient)
+				.build(), metrics);
 	}
 
 	@Bean
-	public UserProfileClient userProfileClient(@Value("${messenger4j.pageAccessToken}") String pageAccessToken) {
-		return MessengerPlatform.newUserProfileClientBuilder(pageAccessToken).build();
+	public UserProfileClient userProfileClient(@Value("${messenger4j.pageAccessToken}") String pageAccessToken,
+											   ResilientHttpClient httpClient,
+											   BotMetrics metrics) {
+		return GraphApiMetricsAspect.advise(MessengerPlatform.newUserProfileClientBuilder(pageAccessToken)
+				.httpClient(httpClient)
+				.build(), metrics);
+	}
+
+	/*
+	* One thread per @Scheduled method, so a reminder tick blocked on the Send API cannot hold up the
+	* shard lease heartbeat until the lease runs out
+	*/
+	@Bean
+	public ThreadPoolTaskScheduler taskScheduler(@Value("${waterbot.scheduler.threads:6}") int threads) {
+		log.debug("Initializing TaskScheduler - threads: {}", threads);
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setPoolSize(threads);
+		scheduler.setThreadNamePrefix("scheduler-");
+		return scheduler;
 	}
 
 }
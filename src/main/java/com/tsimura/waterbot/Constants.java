@@ -1,7 +1,11 @@
 package com.tsimura.waterbot;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public interface Constants {
 
@@ -28,6 +32,14 @@ public interface Constants {
 
     String PAYLOAD_BTN_DONE = "btn_done";
 
+    /*
+    * Free text intents, dispatched like payloads
+    */
+
+    String INTENT_HELLO = "intent_hello";
+    String INTENT_START = "intent_start";
+    String INTENT_DEFAULT = "intent_default";
+
     /*
     * Messages
     */
@@ -61,8 +73,53 @@ public interface Constants {
     String IMG_DISAPPOINTED = "https://www.dropbox.com/s/3p7fl6ko5ped1m1/17198292_263277337448448_1721647584_n.jpg?raw=1";
     String IMG_WATER_REMINDER = "https://www.dropbox.com/s/kurac9551n1xx63/16934202_258546177921564_1657735826_n.gif?raw=1";
 
+    List<String> IMAGES = Collections.unmodifiableList(Arrays.asList(
+            IMG_SATISFIED,
+            IMG_NOT_SATISFIED,
+            IMG_DISAPPOINTED,
+            IMG_WATER_REMINDER
+    ));
+
     /*
     * Mappings
     */
 
+    /*
+    * Evening answer payload -> cups of water saved to the intake log (lower bound of the answer)
+    */
+    Map<String, Integer> CUPS_BY_DONE_PAYLOAD = Mappings.cupsByDonePayload();
+
+    /*
+    * Free text intent -> phrases recognizing it, see IntentMatcher. When phrases of several intents
+    * occur in one message, the intent listed first wins
+    */
+    Map<String, List<String>> PHRASES_BY_INTENT = Mappings.phrasesByIntent();
+
+    /*
+    * Builds the mappings, an interface can have neither a static initializer nor private methods
+    */
+    final class Mappings {
+
+        private Mappings() {
+        }
+
+        private static Map<String, Integer> cupsByDonePayload() {
+            Map<String, Integer> cups = new HashMap<>();
+            cups.put(PAYLOAD_DONE_1, 1);
+            cups.put(PAYLOAD_DONE_3, 3);
+            cups.put(PAYLOAD_DONE_6, 6);
+            cups.put(PAYLOAD_DONE_8, 8);
+            return Collections.unmodifiableMap(cups);
+        }
+
+        private static Map<String, List<String>> phrasesByIntent() {
+            Map<String, List<String>> phrases = new LinkedHashMap<>();
+            phrases.put(INTENT_START, Arrays.asList("start", "strat", "get started", "start over", "restart", "begin", "lets go", "menu"));
+            phrases.put(INTENT_HELLO, Arrays.asList("hi", "hello", "hey", "hiya", "howdy", "hola", "hallo", "yo",
+                    "good morning", "good afternoon", "good evening"));
+            return Collections.unmodifiableMap(phrases);
+        }
+
+    }
+
 }
@@ -0,0 +1,156 @@
+package com.tsimura.waterbot.conversation;
+
+import com.github.messenger4j.send.QuickReply;
+import com.github.messenger4j.send.SenderAction;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.BotService;
+import com.tsimura.waterbot.service.OutboundMessenger;
+import com.tsimura.waterbot.service.OutboundMessenger.Step;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static com.tsimura.waterbot.Constants.*;
+
+/**
+ * Payload -> flow table of the conversation. All flows and their messages are built once at startup;
+ * dispatching a payload is a map lookup followed by queueing the prebuilt replies for the sender.
+ */
+@Slf4j
+@Component
+public class ConversationEngine {
+
+    private static final Step MARK_SEEN = Replies.action(SenderAction.MARK_SEEN);
+
+    private final BotService botService;
+    private final OutboundMessenger messenger;
+    private final AttachmentRegistry attachments;
+    private final Map<String, Flow> flows;
+
+    @Autowired
+    public ConversationEngine(final BotService botService, final OutboundMessenger messenger, final AttachmentRegistry attachments) {
+        this.botService = botService;
+        this.messenger = messenger;
+        this.attachments = attachments;
+        this.flows = Collections.unmodifiableMap(buildFlows());
+        log.debug("Initializing ConversationEngine - flows: {}", flows.keySet());
+    }
+
+    /**
+     * Runs the flow registered for the payload. Returns false if there is none.
+     */
+    public boolean dispatch(String senderId, String payload) {
+        Flow flow = flows.get(payload);
+        if (flow == null) {
+            return false;
+        }
+        flow.getEffect().accept(senderId);
+        messenger.newFlow(senderId).steps(flow.getReplies()).send();
+        return true;
+    }
+
+    private Map<String, Flow> buildFlows() {
+        UnaryOperator<String> names = botService::getUserName;
+        Map<String, Flow> flows = new HashMap<>();
+
+        List<QuickReply> cupsADayReplies = QuickReply.newListBuilder()
+                .addTextQuickReply("1-2 cups", PAYLOAD_CAD_1).toList()
+                .addTextQuickReply("3-5 cups", PAYLOAD_CAD_3).toList()
+                .addTextQuickReply("6 and more", PAYLOAD_CAD_6).toList()
+                .addTextQuickReply("I don't count", PAYLOAD_CAD_DONT_COUNT).toList()
+                .build();
+        List<QuickReply> frequencyReplies = QuickReply.newListBuilder()
+                .addTextQuickReply("3 times a day", PAYLOAD_FRQ_3).toList()
+                .addTextQuickReply("Twice a day", PAYLOAD_FRQ_2).toList()
+                .addTextQuickReply("Once a day", PAYLOAD_FRQ_1).toList()
+                .build();
+        List<QuickReply> onceADayReplies = QuickReply.newListBuilder()
+                .addTextQuickReply("Once a day", PAYLOAD_FRQ_1).toList()
+                .build();
+        List<QuickReply> doneReplies = QuickReply.newListBuilder()
+                .addTextQuickReply("Done", PAYLOAD_BTN_DONE).toList()
+                .build();
+        List<QuickReply> startReplies = QuickReply.newListBuilder()
+                .addTextQuickReply("Let's Start!", PAYLOAD_START).toList()
+                .build();
+
+        Flow getStarted = Flow.builder()
+                .reply(Replies.personalText(MESSAGE_GREETING, names))
+                .typing()
+                .text(MESSAGE_GET_STARTED, startReplies)
+                .build();
+        flows.put(PAYLOAD_GET_STARTED, getStarted);
+        flows.put(INTENT_START, getStarted);
+
+        flows.put(PAYLOAD_START, Flow.builder()
+                .text(MESSAGE_BEFORE_WE_BEGIN)
+                .typing()
+                .text(MESSAGE_CUPS_A_DAY, cupsADayReplies)
+                .build());
+
+        List<Step> recommendFrequency = Flow.builder()
+                .typing()
+                .text(MESSAGE_RECOMMENDED_AMOUNT)
+                .typing()
+                .text(MESSAGE_CHOOSE_FREQUENCY, frequencyReplies)
+                .build()
+                .getReplies();
+        Flow disappointed = Flow.builder().image(IMG_DISAPPOINTED, attachments).replies(recommendFrequency).build();
+        flows.put(PAYLOAD_CAD_1, disappointed);
+        flows.put(PAYLOAD_CAD_DONT_COUNT, disappointed);
+        flows.put(PAYLOAD_CAD_3, Flow.builder().image(IMG_NOT_SATISFIED, attachments).replies(recommendFrequency).build());
+        flows.put(PAYLOAD_CAD_6, Flow.builder()
+                .image(IMG_SATISFIED, attachments)
+                .typing()
+                .text(MESSAGE_GOOD_FREQUENCY)
+                .typing()
+                .text(MESSAGE_SET_DAILY_REMINDER, onceADayReplies)
+                .build());
+
+        flows.put(PAYLOAD_FRQ_1, frequencyFlow(1, doneReplies));
+        flows.put(PAYLOAD_FRQ_2, frequencyFlow(2, doneReplies));
+        flows.put(PAYLOAD_FRQ_3, frequencyFlow(3, doneReplies));
+
+        CUPS_BY_DONE_PAYLOAD.forEach((payload, cups) -> flows.put(payload, Flow.builder()
+                .effect(senderId -> botService.recordIntake(senderId, cups))
+                .text("Thanks! :) progress saved")
+                .build()));
+
+        flows.put(PAYLOAD_BTN_DONE, Flow.builder()
+                .image(IMG_SATISFIED, attachments)
+                .reply(Replies.personalText("Well done %s! Keep it up!", names))
+                .build());
+
+        flows.put(INTENT_HELLO, Flow.builder()
+                .reply(Replies.oneOf(HELLO_MESSAGES.stream().map(Replies::text).collect(Collectors.toList())))
+                .build());
+        flows.put(INTENT_DEFAULT, Flow.builder()
+                .reply(Replies.personalText(MESSAGE_DEFAULT_ANSWER, names))
+                .build());
+
+        return flows;
+    }
+
+    private Flow frequencyFlow(int frequency, List<QuickReply> doneReplies) {
+        return Flow.builder()
+                .effect(senderId -> botService.setReminder(senderId, frequency))
+                .text("Noted :) Let's give it a try now")
+                .text("Drink 1 cup of water and press the button", doneReplies)
+                .build();
+    }
+
+    /**
+     * Acknowledges a payload no flow is registered for.
+     */
+    public void markSeen(String senderId) {
+        messenger.sequence(senderId).step(MARK_SEEN).send();
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.tsimura.waterbot.conversation;
+
+import com.github.messenger4j.send.QuickReply;
+import com.github.messenger4j.send.SenderAction;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.OutboundMessenger.Step;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * What happens when a payload arrives: a side effect on the user's state and the replies to send.
+ */
+@Getter
+public final class Flow {
+
+    private final Consumer<String> effect;
+    private final List<Step> replies;
+
+    private Flow(Consumer<String> effect, List<Step> replies) {
+        this.effect = effect;
+        this.replies = replies;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private Consumer<String> effect = senderId -> { };
+        private final List<Step> replies = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder effect(Consumer<String> effect) {
+            this.effect = effect;
+            return this;
+        }
+
+        public Builder reply(Step step) {
+            replies.add(step);
+            return this;
+        }
+
+        public Builder replies(List<Step> steps) {
+            replies.addAll(steps);
+            return this;
+        }
+
+        public Builder text(String text) {
+            return reply(Replies.text(text));
+        }
+
+        public Builder text(String text, List<QuickReply> quickReplies) {
+            return reply(Replies.text(text, quickReplies));
+        }
+
+        public Builder image(String url, AttachmentRegistry attachments) {
+            return reply(Replies.image(url, attachments));
+        }
+
+        public Builder typing() {
+            return reply(Replies.action(SenderAction.TYPING_ON));
+        }
+
+        public Flow build() {
+            return new Flow(effect, Collections.unmodifiableList(new ArrayList<>(replies)));
+        }
+
+    }
+
+}
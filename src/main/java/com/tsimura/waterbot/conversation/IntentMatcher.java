@@ -0,0 +1,199 @@
+package com.tsimura.waterbot.conversation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import static com.tsimura.waterbot.Constants.PHRASES_BY_INTENT;
+
+/**
+ * Finds the intent of a free text message. The phrase table is compiled at startup into an Aho-Corasick
+ * automaton with every transition precomputed, so matching is one table lookup per character of the
+ * message and allocates nothing.
+ *
+ * <p>Messages and phrases are normalized the same way: lowercase, apostrophes dropped, any other
+ * character that is not a letter or digit is a word boundary, and repeated characters count once, so
+ * "Hiii!!" matches "hi" and "helllo" matches "hello". Phrases only match whole words.
+ */
+@Slf4j
+@Component
+public class IntentMatcher {
+
+    private static final char BOUNDARY = ' ';
+    private static final char DROPPED = 0;
+
+    /*
+    * Alphabet index of every character no phrase contains. Phrases are ASCII, so the table of
+    * character indexes covers ASCII only
+    */
+    private static final int OTHER = 0;
+    private static final int ASCII = 128;
+
+    /*
+    * fold() of every ASCII character
+    */
+    private static final char[] ASCII_FOLDS = new char[ASCII];
+
+    static {
+        for (char c = 0; c < ASCII; c++) {
+            ASCII_FOLDS[c] = foldSlow(c);
+        }
+    }
+
+    private final String[] intents;
+    private final int[] alphabet = new int[ASCII];
+    private final int alphabetSize;
+    private final int[] transitions;
+    private final int[] outputs;
+
+    @Autowired
+    public IntentMatcher() {
+        this(PHRASES_BY_INTENT);
+    }
+
+    /**
+     * @param phrasesByIntent phrases of every intent, the intent iterated first wins when several match
+     */
+    public IntentMatcher(Map<String, List<String>> phrasesByIntent) {
+        this.intents = phrasesByIntent.keySet().toArray(new String[0]);
+
+        /*
+        * Trie of the normalized phrases, each framed by boundaries
+        */
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Integer> phraseIntents = new ArrayList<>();
+        children.add(new HashMap<>());
+        phraseIntents.add(-1);
+        int alphabetSize = 1;
+        for (int intent = 0; intent < intents.length; intent++) {
+            for (String phrase : phrasesByIntent.get(intents[intent])) {
+                String normalized = normalize(phrase);
+                if (normalized.length() == 1) {
+                    throw new IllegalArgumentException("Phrase has no letters or digits: '" + phrase + "'");
+                }
+                int state = 0;
+                for (char c : normalized.toCharArray()) {
+                    if (c >= ASCII) {
+                        throw new IllegalArgumentException("Phrase is not ASCII: " + phrase);
+                    }
+                    if (alphabet[c] == OTHER) {
+                        alphabet[c] = alphabetSize++;
+                    }
+                    Integer next = children.get(state).get(c);
+                    if (next == null) {
+                        next = children.size();
+                        children.get(state).put(c, next);
+                        children.add(new HashMap<>());
+                        phraseIntents.add(-1);
+                    }
+                    state = next;
+                }
+                if (phraseIntents.get(state) < 0 || phraseIntents.get(state) > intent) {
+                    phraseIntents.set(state, intent);
+                }
+            }
+        }
+        this.alphabetSize = alphabetSize;
+
+        /*
+        * Breadth first, so the failure state of a node is complete before the node is reached. A missing
+        * transition goes where the failure state goes, which turns the trie into a DFA
+        */
+        int states = children.size();
+        this.transitions = new int[states * alphabetSize];
+        this.outputs = new int[states];
+        int[] failures = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        outputs[0] = phraseIntents.get(0);
+        for (Map.Entry<Character, Integer> child : children.get(0).entrySet()) {
+            transitions[alphabet[child.getKey()]] = child.getValue();
+            queue.add(child.getValue());
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int failure = failures[state];
+            outputs[state] = best(phraseIntents.get(state), outputs[failure]);
+            System.arraycopy(transitions, failure * alphabetSize, transitions, state * alphabetSize, alphabetSize);
+            for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+                int index = alphabet[child.getKey()];
+                failures[child.getValue()] = transitions[failure * alphabetSize + index];
+                transitions[state * alphabetSize + index] = child.getValue();
+                queue.add(child.getValue());
+            }
+        }
+        log.debug("Initializing IntentMatcher - intents: {} | states: {} | alphabet: {}", Arrays.asList(intents), states, alphabetSize);
+    }
+
+    /**
+     * Intent of the message, null if no phrase occurs in it.
+     */
+    public String match(String text) {
+        int state = step(0, BOUNDARY);
+        int best = outputs[state];
+        char previous = BOUNDARY;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            if (c == DROPPED || c == previous) {
+                continue;
+            }
+            previous = c;
+            state = step(state, c);
+            best = best(best, outputs[state]);
+        }
+        if (previous != BOUNDARY) {
+            best = best(best, outputs[step(state, BOUNDARY)]);
+        }
+        return best < 0 ? null : intents[best];
+    }
+
+    private int step(int state, char c) {
+        return transitions[state * alphabetSize + (c < ASCII ? alphabet[c] : OTHER)];
+    }
+
+    /*
+    * The phrase as seen by the automaton, framed by boundaries
+    */
+    private static String normalize(String phrase) {
+        StringBuilder normalized = new StringBuilder().append(BOUNDARY);
+        char previous = BOUNDARY;
+        for (int i = 0; i < phrase.length(); i++) {
+            char c = fold(phrase.charAt(i));
+            if (c == DROPPED || c == previous) {
+                continue;
+            }
+            previous = c;
+            normalized.append(c);
+        }
+        if (previous != BOUNDARY) {
+            normalized.append(BOUNDARY);
+        }
+        return normalized.toString();
+    }
+
+    private static char fold(char c) {
+        return c < ASCII ? ASCII_FOLDS[c] : foldSlow(c);
+    }
+
+    private static char foldSlow(char c) {
+        if (c == '\'' || c == '\u2019') {
+            return DROPPED;
+        }
+        return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : BOUNDARY;
+    }
+
+    /*
+    * Intents are indexes in priority order, -1 is none
+    */
+    private static int best(int intent, int other) {
+        return intent < 0 ? other : other < 0 ? intent : Math.min(intent, other);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.tsimura.waterbot.conversation;
+
+/**
+ * A {@code %s} message from {@link com.tsimura.waterbot.Constants} split once into its literal parts,
+ * so rendering it is a single string concatenation instead of a {@link String#format} call.
+ */
+public final class MessageTemplate {
+
+    private static final String PLACEHOLDER = "%s";
+
+    private final String[] parts;
+    private final int literalLength;
+
+    private MessageTemplate(String[] parts) {
+        this.parts = parts;
+        int length = 0;
+        for (String part : parts) {
+            length += part.length();
+        }
+        this.literalLength = length;
+    }
+
+    public static MessageTemplate compile(String pattern) {
+        return new MessageTemplate(pattern.split(PLACEHOLDER, -1));
+    }
+
+    public String render(String value) {
+        String substitution = String.valueOf(value);
+        StringBuilder result = new StringBuilder(literalLength + (parts.length - 1) * substitution.length());
+        result.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            result.append(substitution).append(parts[i]);
+        }
+        return result.toString();
+    }
+
+}
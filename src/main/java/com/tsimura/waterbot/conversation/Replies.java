@@ -0,0 +1,52 @@
+package com.tsimura.waterbot.conversation;
+
+import com.github.messenger4j.send.QuickReply;
+import com.github.messenger4j.send.SenderAction;
+import com.tsimura.waterbot.service.AttachmentRegistry;
+import com.tsimura.waterbot.service.OutboundMessenger.Step;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.UnaryOperator;
+
+/**
+ * Factories for the immutable steps flows are made of. Everything but the recipient and the user's
+ * name is fixed when the step is created.
+ */
+public final class Replies {
+
+    private Replies() {
+    }
+
+    public static Step text(String text) {
+        return (client, recipientId) -> client.sendTextMessage(recipientId, text);
+    }
+
+    public static Step text(String text, List<QuickReply> quickReplies) {
+        return (client, recipientId) -> client.sendTextMessage(recipientId, text, quickReplies);
+    }
+
+    /**
+     * Text with the user's name substituted when the message is sent.
+     */
+    public static Step personalText(String pattern, UnaryOperator<String> names) {
+        MessageTemplate template = MessageTemplate.compile(pattern);
+        return (client, recipientId) -> client.sendTextMessage(recipientId, template.render(names.apply(recipientId)));
+    }
+
+    /**
+     * Image sent by its reusable attachment id once {@code attachments} knows it.
+     */
+    public static Step image(String url, AttachmentRegistry attachments) {
+        return (client, recipientId) -> attachments.sendImage(client, recipientId, url);
+    }
+
+    public static Step action(SenderAction action) {
+        return (client, recipientId) -> client.sendSenderAction(recipientId, action);
+    }
+
+    public static Step oneOf(List<Step> steps) {
+        return (client, recipientId) -> steps.get(ThreadLocalRandom.current().nextInt(steps.size())).send(client, recipientId);
+    }
+
+}
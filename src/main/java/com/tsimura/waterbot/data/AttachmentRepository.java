@@ -0,0 +1,39 @@
+package com.tsimura.waterbot.data;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Attachment ids returned by the Attachment Upload API, keyed by the url the image was uploaded from.
+ */
+@org.springframework.stereotype.Repository
+public class AttachmentRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public AttachmentRepository(final JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Map<String, String> getAttachmentIds() {
+        Map<String, String> ids = new HashMap<>();
+        jdbcTemplate.query("select URL, ATTACHMENT_ID from attachments", (RowCallbackHandler) rs ->
+                ids.put(rs.getString("URL"), rs.getString("ATTACHMENT_ID")));
+        return ids;
+    }
+
+    public void saveAttachmentId(String url, String attachmentId) {
+        jdbcTemplate.update("INSERT INTO attachments (url, attachment_id, uploaded_at) VALUES(?, ?, now()) " +
+                "ON CONFLICT (url) DO UPDATE set attachment_id = EXCLUDED.attachment_id, uploaded_at = EXCLUDED.uploaded_at", url, attachmentId);
+    }
+
+    public void deleteAttachmentId(String url, String attachmentId) {
+        jdbcTemplate.update("DELETE FROM attachments where url = ? and attachment_id = ?", url, attachmentId);
+    }
+
+}
@@ -1,34 +1,186 @@
 package com.tsimura.waterbot.data;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 @org.springframework.stereotype.Repository
 public class BotRepository {
 
+    /*
+    * Channel notified with the user id whenever a user row changes
+    */
+    public static final String SUBSCRIBERS_CHANNEL = "waterbot_subscribers";
+
+    private static final String SHARD = "((hashtext(user_id) % ?) + ?) % ?";
+
+    private static final RowMapper<IntakeTotal> INTAKE_TOTAL_MAPPER = (rs, rowNum) ->
+            new IntakeTotal(rs.getString("USER_ID"), rs.getDate("START").toLocalDate(), rs.getInt("CUPS"), rs.getInt("ANSWERS"));
+
+    private static final RowMapper<SubscriberState> SUBSCRIBER_STATE_MAPPER = (rs, rowNum) ->
+            new SubscriberState(rs.getString("USER_ID"), rs.getInt("FREQUENCY"), (Float) rs.getObject("TIMEZONE"),
+                    rs.getInt("SHARD"), rs.getTimestamp("UPDATED_AT"));
+
     private final JdbcTemplate jdbcTemplate;
+    private final int pageSize;
 
     @Autowired
-    public BotRepository(final JdbcTemplate jdbcTemplate) {
+    public BotRepository(final JdbcTemplate jdbcTemplate,
+                         @Value("${waterbot.users.pageSize:1000}") final int pageSize) {
         this.jdbcTemplate = jdbcTemplate;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Saves the reminder frequency and notifies {@link #SUBSCRIBERS_CHANNEL}. Returns the saved row with
+     * its shard out of {@code shardCount}.
+     */
+    public SubscriberState saveUserReminder(String userId, int frequency, int shardCount) {
+        return saveAndNotify("INSERT INTO users (user_id, frequency, updated_at) VALUES(?, ?, now()) " +
+                "ON CONFLICT (user_id) DO UPDATE set frequency = EXCLUDED.frequency, updated_at = now()", shardCount, userId, frequency);
+    }
+
+    /**
+     * Saves the timezone and notifies {@link #SUBSCRIBERS_CHANNEL}. Returns the saved row with its shard
+     * out of {@code shardCount}, or null if the user is not subscribed.
+     */
+    public SubscriberState saveUserTimezone(String userId, float timezone, int shardCount) {
+        return saveAndNotify("UPDATE users set timezone = ?, timezone_updated_at = now(), updated_at = now() where user_id = ?",
+                shardCount, timezone, userId);
+    }
+
+    private SubscriberState saveAndNotify(String statement, int shardCount, Object... args) {
+        List<Object> allArgs = new ArrayList<>(Arrays.asList(args));
+        Collections.addAll(allArgs, shardCount, shardCount, shardCount, SUBSCRIBERS_CHANNEL);
+        List<SubscriberState> saved = jdbcTemplate.query("WITH saved AS (" + statement + " RETURNING user_id, frequency, timezone, updated_at) " +
+                "select USER_ID, FREQUENCY, TIMEZONE, UPDATED_AT, " + SHARD + " as SHARD, pg_notify(?, user_id) from saved",
+                allArgs.toArray(), SUBSCRIBER_STATE_MAPPER);
+        return saved.isEmpty() ? null : saved.get(0);
+    }
+
+    /**
+     * Appends the events to the intake log and adds them to the daily and weekly rollups,
+     * pre-aggregated per user and period so every rollup row is touched once per batch.
+     */
+    @Transactional
+    public void saveIntakes(List<IntakeEvent> events) {
+        jdbcTemplate.batchUpdate("INSERT INTO intake_log (user_id, cups, recorded_at) VALUES(?, ?, ?)",
+                events.stream()
+                        .map(event -> new Object[]{event.getUserId(), event.getCups(), event.getRecordedAt()})
+                        .collect(Collectors.toList()));
+        jdbcTemplate.batchUpdate("INSERT INTO intake_daily (user_id, day, cups, answers) VALUES(?, ?, ?, ?) " +
+                "ON CONFLICT (user_id, day) DO UPDATE set cups = intake_daily.cups + EXCLUDED.cups, answers = intake_daily.answers + EXCLUDED.answers",
+                toArgs(rollup(events, day -> day)));
+        jdbcTemplate.batchUpdate("INSERT INTO intake_weekly (user_id, week_start, cups, answers) VALUES(?, ?, ?, ?) " +
+                "ON CONFLICT (user_id, week_start) DO UPDATE set cups = intake_weekly.cups + EXCLUDED.cups, answers = intake_weekly.answers + EXCLUDED.answers",
+                toArgs(rollup(events, BotRepository::weekStart)));
+    }
+
+    public List<IntakeTotal> getDailyIntakes(String userId, LocalDate from, LocalDate to) {
+        return jdbcTemplate.query("select USER_ID, DAY as START, CUPS, ANSWERS from intake_daily where user_id = ? and day between ? and ? order by day",
+                INTAKE_TOTAL_MAPPER, userId, Date.valueOf(from), Date.valueOf(to));
+    }
+
+    public IntakeTotal getWeeklyIntake(String userId, LocalDate day) {
+        LocalDate weekStart = weekStart(day);
+        List<IntakeTotal> totals = jdbcTemplate.query("select USER_ID, WEEK_START as START, CUPS, ANSWERS from intake_weekly where user_id = ? and week_start = ?",
+                INTAKE_TOTAL_MAPPER, userId, Date.valueOf(weekStart));
+        return totals.isEmpty() ? new IntakeTotal(userId, weekStart, 0, 0) : totals.get(0);
+    }
+
+    public List<IntakeTotal> getWeeklyIntakes(LocalDate day) {
+        return jdbcTemplate.query("select USER_ID, WEEK_START as START, CUPS, ANSWERS from intake_weekly where week_start = ?",
+                INTAKE_TOTAL_MAPPER, Date.valueOf(weekStart(day)));
+    }
+
+    public static LocalDate weekStart(LocalDate day) {
+        return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    private static Collection<IntakeTotal> rollup(List<IntakeEvent> events, UnaryOperator<LocalDate> period) {
+        Map<String, IntakeTotal> totals = new HashMap<>();
+        for (IntakeEvent event : events) {
+            LocalDate start = period.apply(event.getDay());
+            totals.merge(event.getUserId() + '@' + start, new IntakeTotal(event.getUserId(), start, event.getCups(), 1),
+                    (a, b) -> new IntakeTotal(a.getUserId(), a.getStart(), a.getCups() + b.getCups(), a.getAnswers() + b.getAnswers()));
+        }
+        return totals.values();
+    }
+
+    private static List<Object[]> toArgs(Collection<IntakeTotal> totals) {
+        return totals.stream()
+                .map(total -> new Object[]{total.getUserId(), Date.valueOf(total.getStart()), total.getCups(), total.getAnswers()})
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Current time on the database clock, the one {@code updated_at} is written with.
+     */
+    public Timestamp getDatabaseTime() {
+        return jdbcTemplate.queryForObject("select localtimestamp", Timestamp.class);
     }
 
-    public void saveUserReminder(String userId, int frequency) {
-        jdbcTemplate.update("INSERT INTO users (user_id, frequency) VALUES(?, ?) ON CONFLICT (user_id) DO UPDATE set frequency = ?", userId, frequency, frequency);
+    /**
+     * Users changed after {@code since} with their shard out of {@code shardCount}, read page by page
+     * while iterating. Pages are separate statements, so a row changed during the scan may be read
+     * with its old state or not at all.
+     */
+    public Iterable<SubscriberState> scanSubscribersUpdatedSince(Timestamp since, int shardCount) {
+        return new KeysetScan<>((afterUserId, limit) ->
+                queryPage("select USER_ID, FREQUENCY, TIMEZONE, UPDATED_AT, " + SHARD + " as SHARD from users " +
+                        "where updated_at > ? and user_id > ? order by user_id limit ?",
+                        SUBSCRIBER_STATE_MAPPER, shardCount, shardCount, shardCount, since, afterUserId, limit),
+                SubscriberState::getUserId, pageSize);
     }
 
-    public List<String> getUsersByReminder(int frequency) {
-        return jdbcTemplate.queryForList("select USER_ID from users where frequency >= ?", String.class, frequency);
+    public List<String> getUsersWithStaleTimezone(int maxAgeDays, int limit, int shardCount, Collection<Integer> shards) {
+        if (shards.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> args = new ArrayList<>();
+        args.add(maxAgeDays);
+        String shardPredicate = shardPredicate(shardCount, shards, args);
+        args.add(limit);
+        return jdbcTemplate.queryForList("select USER_ID from users where (timezone_updated_at is null " +
+                "or timezone_updated_at < now() - ? * interval '1 day') and " + shardPredicate +
+                " order by timezone_updated_at nulls first limit ?", String.class, args.toArray());
     }
 
-    public int getUserFrequency(String id) {
-        return jdbcTemplate.queryForObject("select FREQUENCY from users where user_id = ?", Integer.class, id);
+    /*
+    * Statement fetch size follows the page size so a page is read in one round trip
+    */
+    private <T> List<T> queryPage(String sql, RowMapper<T> rowMapper, Object... args) {
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql);
+            ps.setFetchSize(pageSize);
+            new ArgumentPreparedStatementSetter(args).setValues(ps);
+            return ps;
+        }, rowMapper);
     }
 
-    public List<String> getAllUsers() {
-        return jdbcTemplate.queryForList("select USER_ID from users", String.class);
+    private static String shardPredicate(int shardCount, Collection<Integer> shards, List<Object> args) {
+        Collections.addAll(args, shardCount, shardCount, shardCount);
+        args.addAll(shards);
+        return SHARD + " in (" + String.join(", ", Collections.nCopies(shards.size(), "?")) + ")";
     }
 
 }
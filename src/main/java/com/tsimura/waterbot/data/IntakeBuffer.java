@@ -0,0 +1,98 @@
+package com.tsimura.waterbot.data;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind buffer for intake answers. Events are queued in memory and written with JDBC batch
+ * inserts once {@code batchSize} of them are pending or the flush interval elapses, so the evening
+ * burst of answers does not turn into one insert per webhook call. Events added after shutdown are
+ * written right away on the caller's thread.
+ */
+@Slf4j
+@Component
+public class IntakeBuffer {
+
+    private final BotRepository repository;
+    private final int batchSize;
+    private final int maxPending;
+
+    private final Queue<IntakeEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("intake-flush-"));
+    private volatile boolean closed;
+
+    @Autowired
+    public IntakeBuffer(final BotRepository repository,
+                        @Value("${waterbot.intake.batchSize:500}") final int batchSize,
+                        @Value("${waterbot.intake.maxPending:100000}") final int maxPending) {
+        this.repository = repository;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+    }
+
+    public void add(IntakeEvent event) {
+        int current = size.incrementAndGet();
+        if (current > maxPending) {
+            size.decrementAndGet();
+            log.warn("Intake buffer is full, dropping {}", event);
+            return;
+        }
+        pending.add(event);
+        if (closed) {
+            flush();
+        } else if (current % batchSize == 0) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                /*
+                * Shutdown started after closed was read
+                */
+                flush();
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${waterbot.intake.flushIntervalMillis:1000}")
+    public synchronized void flush() {
+        List<IntakeEvent> batch = new ArrayList<>(batchSize);
+        while (!pending.isEmpty()) {
+            IntakeEvent event;
+            while (batch.size() < batchSize && (event = pending.poll()) != null) {
+                batch.add(event);
+            }
+            try {
+                repository.saveIntakes(batch);
+            } catch (DataAccessException e) {
+                log.error("Could not save {} intake events, will retry", batch.size(), e);
+                pending.addAll(batch);
+                return;
+            }
+            size.addAndGet(-batch.size());
+            batch.clear();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        closed = true;
+        flusher.shutdown();
+        flush();
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.tsimura.waterbot.data;
+
+import lombok.Value;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+
+@Value
+public class IntakeEvent {
+
+    String userId;
+    int cups;
+    Timestamp recordedAt;
+    /*
+    * Date in the user's timezone the answer counts for
+    */
+    LocalDate day;
+
+}
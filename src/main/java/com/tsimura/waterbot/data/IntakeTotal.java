@@ -0,0 +1,18 @@
+package com.tsimura.waterbot.data;
+
+import lombok.Value;
+
+import java.time.LocalDate;
+
+/**
+ * Pre-aggregated intake of one user over a period starting at {@code start}: a day or an ISO week.
+ */
+@Value
+public class IntakeTotal {
+
+    String userId;
+    LocalDate start;
+    int cups;
+    int answers;
+
+}
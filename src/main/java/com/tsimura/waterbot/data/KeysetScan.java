@@ -0,0 +1,66 @@
+package com.tsimura.waterbot.data;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Walks a table in pages ordered by a unique string key. The next page is queried only once the
+ * previous one has been consumed, so at most one page is held in memory and the caller can start
+ * working on the first rows before the rest of the table has been read.
+ */
+class KeysetScan<T> implements Iterable<T> {
+
+    @FunctionalInterface
+    interface PageLoader<T> {
+        List<T> load(String afterKey, int limit);
+    }
+
+    private final PageLoader<T> loader;
+    private final Function<T, String> key;
+    private final int pageSize;
+
+    KeysetScan(PageLoader<T> loader, Function<T, String> key, int pageSize) {
+        this.loader = loader;
+        this.key = key;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private List<T> page = Collections.emptyList();
+            private int position;
+            private String lastKey = "";
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (position < page.size()) {
+                    return true;
+                }
+                if (exhausted) {
+                    return false;
+                }
+                page = loader.load(lastKey, pageSize);
+                position = 0;
+                exhausted = page.size() < pageSize;
+                if (!page.isEmpty()) {
+                    lastKey = key.apply(page.get(page.size() - 1));
+                }
+                return !page.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(position++);
+            }
+        };
+    }
+
+}
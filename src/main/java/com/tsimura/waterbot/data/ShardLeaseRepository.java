@@ -0,0 +1,77 @@
+package com.tsimura.waterbot.data;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Lease table used to split users between scheduler instances. A lease that is not renewed
+ * before it expires may be claimed by any other live node.
+ */
+@org.springframework.stereotype.Repository
+public class ShardLeaseRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public ShardLeaseRepository(final JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Epoch millis on the database clock, the one leases expire by.
+     */
+    public long getDatabaseTimeMillis() {
+        return jdbcTemplate.queryForObject("select (extract(epoch from clock_timestamp()) * 1000)::bigint", Long.class);
+    }
+
+    public void heartbeat(String nodeId) {
+        jdbcTemplate.update("INSERT INTO scheduler_nodes (node_id, heartbeat_at) VALUES(?, now()) ON CONFLICT (node_id) DO UPDATE set heartbeat_at = now()", nodeId);
+    }
+
+    public int countLiveNodes(int ttlSeconds) {
+        jdbcTemplate.update("DELETE FROM scheduler_nodes where heartbeat_at < now() - ? * interval '1 second'", ttlSeconds);
+        return jdbcTemplate.queryForObject("select count(*) from scheduler_nodes", Integer.class);
+    }
+
+    public void removeNode(String nodeId) {
+        jdbcTemplate.update("DELETE FROM shard_leases where owner = ?", nodeId);
+        jdbcTemplate.update("DELETE FROM scheduler_nodes where node_id = ?", nodeId);
+    }
+
+    public List<Integer> renewLeases(String nodeId, int ttlSeconds) {
+        return jdbcTemplate.queryForList("UPDATE shard_leases set expires_at = now() + ? * interval '1 second' where owner = ? RETURNING shard",
+                Integer.class, ttlSeconds, nodeId);
+    }
+
+    public boolean claimLease(int shard, String nodeId, int ttlSeconds) {
+        return !jdbcTemplate.queryForList("INSERT INTO shard_leases (shard, owner, expires_at) VALUES(?, ?, now() + ? * interval '1 second') " +
+                "ON CONFLICT (shard) DO UPDATE set owner = EXCLUDED.owner, expires_at = EXCLUDED.expires_at where shard_leases.expires_at < now() RETURNING shard",
+                Integer.class, shard, nodeId, ttlSeconds).isEmpty();
+    }
+
+    public void releaseLease(int shard, String nodeId) {
+        jdbcTemplate.update("DELETE FROM shard_leases where shard = ? and owner = ?", shard, nodeId);
+    }
+
+    /**
+     * Epoch millis up to which reminders of the shard were delivered, null if never recorded.
+     */
+    public Long getDeliveredThrough(int shard) {
+        List<Long> through = jdbcTemplate.queryForList("select delivered_through from shard_progress where shard = ?", Long.class, shard);
+        return through.isEmpty() ? null : through.get(0);
+    }
+
+    public void saveDeliveredThrough(Collection<Integer> shards, long through) {
+        List<Object[]> args = new ArrayList<>(shards.size());
+        for (Integer shard : shards) {
+            args.add(new Object[]{shard, through});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO shard_progress (shard, delivered_through) VALUES(?, ?) ON CONFLICT (shard) " +
+                "DO UPDATE set delivered_through = GREATEST(shard_progress.delivered_through, EXCLUDED.delivered_through)", args);
+    }
+
+}
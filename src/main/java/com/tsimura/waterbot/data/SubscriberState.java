@@ -0,0 +1,16 @@
+package com.tsimura.waterbot.data;
+
+import lombok.Value;
+
+import java.sql.Timestamp;
+
+@Value
+public class SubscriberState {
+
+    String userId;
+    int frequency;
+    Float timezone;
+    int shard;
+    Timestamp updatedAt;
+
+}
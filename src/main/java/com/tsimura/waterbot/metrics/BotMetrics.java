@@ -0,0 +1,74 @@
+package com.tsimura.waterbot.metrics;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms of the bot, published on the actuator {@code /metrics} endpoint.
+ * Metrics are addressed by a group and a key so hot paths can look them up without building strings.
+ */
+@Component
+public class BotMetrics implements PublicMetrics {
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    public LatencyHistogram timer(String group, String key) {
+        return lookup(timers, group, key, LatencyHistogram::new);
+    }
+
+    public LongAdder counter(String group, String key) {
+        return lookup(counters, group, key, LongAdder::new);
+    }
+
+    public void gauge(String name, long value) {
+        AtomicLong gauge = gauges.get(name);
+        if (gauge == null) {
+            gauge = gauges.computeIfAbsent(name, n -> new AtomicLong());
+        }
+        gauge.set(value);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        timers.forEach((group, byKey) -> byKey.forEach((key, histogram) -> {
+            String name = "waterbot.timer." + group + "." + key;
+            metrics.add(new Metric<>(name + ".count", histogram.getCount()));
+            metrics.add(new Metric<>(name + ".mean", histogram.getMeanMillis()));
+            metrics.add(new Metric<>(name + ".p50", histogram.getPercentileMillis(0.5)));
+            metrics.add(new Metric<>(name + ".p99", histogram.getPercentileMillis(0.99)));
+            metrics.add(new Metric<>(name + ".max", histogram.getMaxMillis()));
+        }));
+        counters.forEach((group, byKey) -> byKey.forEach((key, counter) ->
+                metrics.add(new Metric<>("waterbot.counter." + group + "." + key, counter.sum()))));
+        gauges.forEach((name, gauge) -> metrics.add(new Metric<>("waterbot.gauge." + name, gauge.get())));
+        return metrics;
+    }
+
+    private static <T> T lookup(ConcurrentMap<String, ConcurrentMap<String, T>> metrics, String group, String key,
+                                Supplier<T> factory) {
+        Map<String, T> byKey = metrics.get(group);
+        if (byKey == null) {
+            byKey = metrics.computeIfAbsent(group, g -> new ConcurrentHashMap<>());
+        }
+        T metric = byKey.get(key);
+        if (metric == null) {
+            metric = byKey.computeIfAbsent(key, k -> factory.get());
+        }
+        return metric;
+    }
+
+}
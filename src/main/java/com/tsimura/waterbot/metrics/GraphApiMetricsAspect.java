@@ -0,0 +1,59 @@
+package com.tsimura.waterbot.metrics;
+
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.exceptions.MessengerIOException;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+/**
+ * Times every Send API and User Profile API call and counts Graph API failures per error code.
+ * The messenger4j clients are final classes, so instead of being picked up by auto-proxying this
+ * aspect is applied by {@link #advise(Object, BotMetrics)} through a proxy of the client interfaces.
+ */
+@Aspect
+public class GraphApiMetricsAspect {
+
+    private final BotMetrics metrics;
+
+    private GraphApiMetricsAspect(final BotMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The client behind a proxy of its interfaces that times its calls.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T advise(T client, BotMetrics metrics) {
+        AspectJProxyFactory factory = new AspectJProxyFactory(client);
+        factory.addAspect(new GraphApiMetricsAspect(metrics));
+        return (T) factory.getProxy();
+    }
+
+    @Around("execution(* com.github.messenger4j.send.MessengerSendClient.*(..))")
+    public Object timeSendClient(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timeGraphApiCall("send", joinPoint);
+    }
+
+    @Around("execution(* com.github.messenger4j.user.UserProfileClient.*(..))")
+    public Object timeUserProfileClient(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timeGraphApiCall("profile", joinPoint);
+    }
+
+    private Object timeGraphApiCall(String api, ProceedingJoinPoint joinPoint) throws Throwable {
+        long startedAt = System.nanoTime();
+        try {
+            return joinPoint.proceed();
+        } catch (MessengerApiException e) {
+            metrics.counter(api + ".error", String.valueOf(e.getCode())).increment();
+            throw e;
+        } catch (MessengerIOException e) {
+            metrics.counter(api + ".error", "io").increment();
+            throw e;
+        } finally {
+            metrics.timer(api, joinPoint.getSignature().getName()).recordSince(startedAt);
+        }
+    }
+
+}
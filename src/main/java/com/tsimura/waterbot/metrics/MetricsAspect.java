@@ -0,0 +1,33 @@
+package com.tsimura.waterbot.metrics;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times every repository call. Graph API calls are timed by {@link GraphApiMetricsAspect}.
+ */
+@Aspect
+@Component
+public class MetricsAspect {
+
+    private final BotMetrics metrics;
+
+    @Autowired
+    public MetricsAspect(final BotMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Around("@within(org.springframework.stereotype.Repository)")
+    public Object timeRepository(ProceedingJoinPoint joinPoint) throws Throwable {
+        long startedAt = System.nanoTime();
+        try {
+            return joinPoint.proceed();
+        } finally {
+            metrics.timer("repository", joinPoint.getSignature().getName()).recordSince(startedAt);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.exceptions.MessengerIOException;
+import com.github.messenger4j.send.BinaryAttachment;
+import com.github.messenger4j.send.MessengerResponse;
+import com.github.messenger4j.send.MessengerSendClient;
+import com.tsimura.waterbot.Constants;
+import com.tsimura.waterbot.data.AttachmentRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends images by attachment id instead of url, so Facebook does not fetch them from Dropbox on every
+ * message. Every image of {@link Constants#IMAGES} is uploaded once and its id kept in the database;
+ * an id Facebook rejects is dropped, but not on an error about the recipient, which shares the code.
+ * While no id is known the image is sent by url as a reusable attachment, and the id that send
+ * returns is kept; failed uploads are only retried by {@link #uploadMissing()}, never on the sending
+ * threads.
+ */
+@Slf4j
+@Component
+public class AttachmentRegistry {
+
+    /*
+    * Graph API error code for an invalid parameter, returned for unknown or expired attachment ids and,
+    * with a subcode GraphApiErrors knows, for recipients that are gone
+    */
+    private static final int INVALID_PARAMETER = 100;
+
+    private final AttachmentRepository repository;
+    private final AttachmentUploadClient uploadClient;
+    private final ResilientHttpClient httpClient;
+    private final Map<String, String> attachmentIds = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AttachmentRegistry(final AttachmentRepository repository,
+                              final AttachmentUploadClient uploadClient,
+                              final ResilientHttpClient httpClient) {
+        this.repository = repository;
+        this.uploadClient = uploadClient;
+        this.httpClient = httpClient;
+    }
+
+    @PostConstruct
+    public void load() {
+        try {
+            attachmentIds.putAll(repository.getAttachmentIds());
+            log.debug("Loaded {} attachment ids", attachmentIds.size());
+        } catch (DataAccessException e) {
+            log.warn("Could not load attachment ids: {}", e.getMessage());
+        }
+    }
+
+    /*
+    * Runs right after startup and again later for images whose upload failed
+    */
+    @Scheduled(fixedDelayString = "${waterbot.attachments.uploadRetryMillis:600000}")
+    public void uploadMissing() {
+        for (String url : Constants.IMAGES) {
+            if (attachmentIds.containsKey(url)) {
+                continue;
+            }
+            try {
+                remember(url, uploadClient.uploadImage(url));
+            } catch (MessengerIOException e) {
+                log.warn("Could not upload {}: {}", url, e.getMessage());
+            }
+        }
+    }
+
+    public void sendImage(MessengerSendClient client, String recipientId, String url) throws MessengerApiException, MessengerIOException {
+        String attachmentId = attachmentIds.get(url);
+        if (attachmentId != null) {
+            try {
+                client.sendBinaryAttachment(recipientId, BinaryAttachment.newBuilder(BinaryAttachment.Type.IMAGE).attachmentId(attachmentId).build());
+                return;
+            } catch (MessengerApiException e) {
+                if (!Objects.equals(e.getCode(), INVALID_PARAMETER)
+                        || GraphApiErrors.isRecipientGone(e.getCode(), httpClient.lastErrorSubcode())) {
+                    throw e;
+                }
+                log.warn("Attachment {} of {} rejected, sending by url: {}", attachmentId, url, e.getMessage());
+                forget(url, attachmentId);
+            }
+        }
+
+        MessengerResponse response = client.sendBinaryAttachment(recipientId,
+                BinaryAttachment.newBuilder(BinaryAttachment.Type.IMAGE).url(url).isReusable(true).build());
+        if (response != null && response.getAttachmentId() != null) {
+            remember(url, response.getAttachmentId());
+        }
+    }
+
+    /*
+    * Keeps the first id known for the url; ids of concurrent sends by url are dropped
+    */
+    private void remember(String url, String attachmentId) {
+        if (attachmentIds.putIfAbsent(url, attachmentId) != null) {
+            return;
+        }
+        log.info("Sending {} as attachment {}", url, attachmentId);
+        try {
+            repository.saveAttachmentId(url, attachmentId);
+        } catch (DataAccessException e) {
+            log.warn("Could not save attachment {} of {}: {}", attachmentId, url, e.getMessage());
+        }
+    }
+
+    private void forget(String url, String attachmentId) {
+        attachmentIds.remove(url, attachmentId);
+        try {
+            repository.deleteAttachmentId(url, attachmentId);
+        } catch (DataAccessException e) {
+            log.warn("Could not delete attachment {} of {}: {}", attachmentId, url, e.getMessage());
+        }
+    }
+
+}
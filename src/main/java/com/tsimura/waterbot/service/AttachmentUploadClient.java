@@ -0,0 +1,65 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.exceptions.MessengerIOException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client of the Attachment Upload API, which messenger4j does not cover. The image is fetched by
+ * Facebook once and can then be sent by the returned attachment id.
+ */
+@Slf4j
+@Component
+public class AttachmentUploadClient {
+
+    private final RestTemplate restTemplate;
+    private final String uploadUrl;
+    private final String pageAccessToken;
+
+    @Autowired
+    public AttachmentUploadClient(@Value("${messenger4j.pageAccessToken}") final String pageAccessToken,
+                                  @Value("${waterbot.graph.url:" + GraphApiHttpClient.FACEBOOK_GRAPH_URL + "}") final String graphUrl,
+                                  @Value("${waterbot.graph.timeoutMillis:10000}") final int timeoutMillis) {
+        log.debug("Initializing AttachmentUploadClient - graphUrl: {}", graphUrl);
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeoutMillis);
+        requestFactory.setReadTimeout(timeoutMillis);
+        this.restTemplate = new RestTemplate(requestFactory);
+        this.uploadUrl = graphUrl + "/me/message_attachments?access_token={token}";
+        this.pageAccessToken = pageAccessToken;
+    }
+
+    /**
+     * Uploads the image at {@code url} as a reusable attachment and returns its id.
+     */
+    public String uploadImage(String url) throws MessengerIOException {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("url", url);
+        payload.put("is_reusable", true);
+        Map<String, Object> attachment = new HashMap<>();
+        attachment.put("type", "image");
+        attachment.put("payload", payload);
+
+        try {
+            Map<?, ?> response = restTemplate.postForObject(uploadUrl,
+                    Collections.singletonMap("message", Collections.singletonMap("attachment", attachment)), Map.class, pageAccessToken);
+            Object attachmentId = response == null ? null : response.get("attachment_id");
+            if (attachmentId == null) {
+                throw new MessengerIOException(new IllegalStateException("No attachment_id in upload response: " + response));
+            }
+            return attachmentId.toString();
+        } catch (RestClientException e) {
+            throw new MessengerIOException(e);
+        }
+    }
+
+}
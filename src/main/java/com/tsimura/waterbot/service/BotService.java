@@ -4,17 +4,28 @@ import com.github.messenger4j.exceptions.MessengerApiException;
 import com.github.messenger4j.exceptions.MessengerIOException;
 import com.github.messenger4j.send.MessengerSendClient;
 import com.github.messenger4j.send.QuickReply;
-import com.github.messenger4j.user.UserProfile;
-import com.github.messenger4j.user.UserProfileClient;
 import com.tsimura.waterbot.Constants;
 import com.tsimura.waterbot.data.BotRepository;
+import com.tsimura.waterbot.data.IntakeBuffer;
+import com.tsimura.waterbot.data.IntakeEvent;
+import com.tsimura.waterbot.data.IntakeTotal;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.service.BroadcastDispatcher.BroadcastStep;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.tsimura.waterbot.Constants.*;
 
@@ -23,84 +34,188 @@ import static com.tsimura.waterbot.Constants.*;
 public class BotService {
 
     private final BotRepository repository;
+    private final SubscriberRegistry subscriberRegistry;
+    private final ReminderScheduler reminderScheduler;
+    private final IntakeBuffer intakeBuffer;
     private final MessengerSendClient sendClient;
-    private final UserProfileClient userProfileClient;
+    private final UserProfileCache userProfileCache;
+    private final BroadcastDispatcher broadcastDispatcher;
+    private final ShardCoordinator shardCoordinator;
+    private final AttachmentRegistry attachments;
+    private final BotMetrics metrics;
+
+    @Value("${waterbot.timezone.maxAgeDays:7}")
+    private int timezoneMaxAgeDays;
+
+    @Value("${waterbot.timezone.refreshBatchSize:500}")
+    private int timezoneRefreshBatchSize;
 
     @Autowired
     public BotService(final BotRepository repository,
+                      final SubscriberRegistry subscriberRegistry,
+                      final ReminderScheduler reminderScheduler,
+                      final IntakeBuffer intakeBuffer,
                       final MessengerSendClient sendClient,
-                      final UserProfileClient userProfileClient) {
+                      final UserProfileCache userProfileCache,
+                      final BroadcastDispatcher broadcastDispatcher,
+                      final ShardCoordinator shardCoordinator,
+                      final AttachmentRegistry attachments,
+                      final BotMetrics metrics) {
         this.repository = repository;
+        this.subscriberRegistry = subscriberRegistry;
+        this.reminderScheduler = reminderScheduler;
+        this.intakeBuffer = intakeBuffer;
         this.sendClient = sendClient;
-        this.userProfileClient = userProfileClient;
+        this.userProfileCache = userProfileCache;
+        this.broadcastDispatcher = broadcastDispatcher;
+        this.shardCoordinator = shardCoordinator;
+        this.attachments = attachments;
+        this.metrics = metrics;
     }
 
     public void setReminder(String senderId, int frequency) {
         log.debug("senderId = {}, frq = {}", senderId, frequency);
-        repository.saveUserReminder(senderId, frequency);
+        subscriberRegistry.setReminder(senderId, frequency);
+        refreshTimezone(senderId);
     }
 
-    public String getUserName(String userId) {
-        try {
-            return userProfileClient.queryUserProfile(userId).getFirstName();
-        } catch (MessengerApiException | MessengerIOException e) {
-            e.printStackTrace();
-            return null;
-        }
+    public void recordIntake(String senderId, int cups) {
+        log.debug("senderId = {}, cups = {}", senderId, cups);
+        intakeBuffer.add(new IntakeEvent(senderId, cups, new Timestamp(System.currentTimeMillis()), getUserToday(senderId)));
     }
 
-    private boolean checkHour(float hour, int exact) {
-        return hour >= exact && hour < (exact + 1);
+    /**
+     * Cups recorded by the user during the current week, read from the weekly rollup.
+     */
+    public IntakeTotal getWeeklyIntake(String userId) {
+        return repository.getWeeklyIntake(userId, getUserToday(userId));
     }
 
-    @Scheduled(cron = "0 0 * * * *")
-    private void sendNotifications() {
-        int hour = new GregorianCalendar().get(Calendar.HOUR_OF_DAY);
+    /**
+     * Day by day intake of the user during the current week, read from the daily rollup.
+     */
+    public List<IntakeTotal> getDailyIntakes(String userId) {
+        LocalDate today = getUserToday(userId);
+        return repository.getDailyIntakes(userId, BotRepository.weekStart(today), today);
+    }
 
-        repository.getAllUsers().forEach(id -> {
+    /**
+     * Weekly totals of every user who answered during the week containing {@code day}.
+     */
+    public List<IntakeTotal> getWeeklyIntakes(LocalDate day) {
+        return repository.getWeeklyIntakes(day);
+    }
+
+    private LocalDate getUserToday(String userId) {
+        Float timezone = subscriberRegistry.getTimezone(userId);
+        if (timezone == null) {
             try {
-                UserProfile userProfile = userProfileClient.queryUserProfile(id);
-                float userHour = hour + userProfile.getTimezoneOffset();
-                int userFrequency = repository.getUserFrequency(id);
-
-                if (userFrequency >= 1 && checkHour(userHour, 10)) {
-                    sendNotification(id, "Good morning %s :) don't forget drink water today");
-                } else if (userFrequency >= 2 && checkHour(userHour, 14)) {
-                    sendNotification(id, "Hey %s ;) don't forget drink water!");
-                } else if (userFrequency == 3 && checkHour(userHour, 18)) {
-                    sendNotification(id, "Hi %s ;) doing well with your water challenge?");
-                } else if (checkHour(userHour, 20)) {
-                    sendEveningNotification(id);
-                }
+                timezone = userProfileCache.get(userId).getTimezoneOffset();
             } catch (MessengerApiException | MessengerIOException e) {
-                e.printStackTrace();
+                log.warn("Could not get timezone of user {}, using UTC: {}", userId, e.getMessage());
             }
-        });
+        }
+        if (timezone == null) {
+            timezone = ReminderScheduler.DEFAULT_TIMEZONE;
+        }
+        return LocalDateTime.now(ZoneOffset.UTC).plusMinutes((long) (timezone * 60)).toLocalDate();
     }
 
-    private void sendEveningNotification(String id) {
+    private void refreshTimezone(String userId) {
         try {
-            sendClient.sendImageAttachment(id, Constants.IMG_WATER_REMINDER);
-            sendClient.sendTextMessage(id,
-                    String.format("So how many glasses of water have you drank today %s?", getUserName(id)),
-                    QuickReply.newListBuilder()
-                            .addTextQuickReply("1-2", PAYLOAD_DONE_1).toList()
-                            .addTextQuickReply("3-5", PAYLOAD_DONE_3).toList()
-                            .addTextQuickReply("6-8", PAYLOAD_DONE_6).toList()
-                            .addTextQuickReply("8+", PAYLOAD_DONE_8).toList()
-                            .build());
+            subscriberRegistry.setTimezone(userId, userProfileCache.get(userId).getTimezoneOffset());
         } catch (MessengerApiException | MessengerIOException e) {
-            e.printStackTrace();
+            log.warn("Could not refresh timezone of user {}: {}", userId, e.getMessage());
         }
     }
 
-    private void sendNotification(String id, String text) {
+    @Scheduled(cron = "0 30 * * * *")
+    private void refreshStaleTimezones() {
+        repository.getUsersWithStaleTimezone(timezoneMaxAgeDays, timezoneRefreshBatchSize,
+                shardCoordinator.getShardCount(), shardCoordinator.getOwnedShards()).forEach(this::refreshTimezone);
+    }
+
+    public String getUserName(String userId) {
         try {
-            sendClient.sendImageAttachment(id, Constants.IMG_WATER_REMINDER);
-            sendClient.sendTextMessage(id, String.format(text, getUserName(id)));
+            return userProfileCache.get(userId).getFirstName();
         } catch (MessengerApiException | MessengerIOException e) {
-            e.printStackTrace();
+            log.warn("Could not get name of user {}: {}", userId, e.getMessage());
+            return null;
         }
     }
 
+    @Scheduled(fixedDelayString = "${waterbot.reminders.tickMillis:1000}")
+    public void sendNotifications() {
+        sendReminders(shardCoordinator.currentTimeMillis());
+
+        /*
+        * After the run recorded its progress, so shards given up meanwhile go to the next owner only now
+        */
+        shardCoordinator.releaseGivenUp();
+    }
+
+    /**
+     * Sends the reminders that are due by {@code now} to users of the shards this instance owns, and
+     * those a shard taken over since the last run missed.
+     */
+    public void sendReminders(long now) {
+        Set<Integer> shards = shardCoordinator.getOwnedShards();
+        List<Reminder> reminders = reminderScheduler.pollDue(now, shards, shardCoordinator.pollTakenOver(shards));
+        metrics.gauge("scheduler.scheduledReminders", reminderScheduler.size());
+        if (reminders.isEmpty()) {
+            return;
+        }
+        long lagMillis = now - reminders.stream().mapToLong(Reminder::getDeadline).min().getAsLong();
+
+        BroadcastReport report = broadcastDispatcher.dispatch("reminders, shards " + shards, reminders, reminder -> {
+            String id = reminder.getUserId();
+            int userFrequency = reminder.getFrequency();
+            int userHour = reminder.getLocalHour();
+
+            if (userFrequency >= 1 && userHour == 10) {
+                return notificationSteps(id, "Good morning %s :) don't forget drink water today");
+            } else if (userFrequency >= 2 && userHour == 14) {
+                return notificationSteps(id, "Hey %s ;) don't forget drink water!");
+            } else if (userFrequency == 3 && userHour == 18) {
+                return notificationSteps(id, "Hi %s ;) doing well with your water challenge?");
+            } else if (userHour == 20) {
+                return eveningNotificationSteps(id);
+            }
+            return Collections.emptyList();
+        });
+        shardCoordinator.markDelivered(shards, now);
+
+        metrics.gauge("scheduler.lastRun.lagMillis", lagMillis);
+        metrics.gauge("scheduler.lastRun.usersScanned", report.getSubmitted());
+        metrics.gauge("scheduler.lastRun.sent", report.getSent());
+        metrics.gauge("scheduler.lastRun.skipped", report.getSkipped());
+        metrics.gauge("scheduler.lastRun.failed", report.getFailed());
+        metrics.gauge("scheduler.lastRun.durationMillis", report.getDurationMillis());
+        metrics.counter("scheduler", "sent").add(report.getSent());
+        metrics.counter("scheduler", "skipped").add(report.getSkipped());
+        metrics.counter("scheduler", "failed").add(report.getFailed());
+        metrics.timer("scheduler", "run").recordNanos(TimeUnit.MILLISECONDS.toNanos(report.getDurationMillis()));
+
+        log.debug("User profile cache: {}", userProfileCache.stats());
+    }
+
+    private List<BroadcastStep> eveningNotificationSteps(String id) {
+        return Arrays.asList(
+                () -> attachments.sendImage(sendClient, id, Constants.IMG_WATER_REMINDER),
+                () -> sendClient.sendTextMessage(id,
+                        String.format("So how many glasses of water have you drank today %s?", getUserName(id)),
+                        QuickReply.newListBuilder()
+                                .addTextQuickReply("1-2", PAYLOAD_DONE_1).toList()
+                                .addTextQuickReply("3-5", PAYLOAD_DONE_3).toList()
+                                .addTextQuickReply("6-8", PAYLOAD_DONE_6).toList()
+                                .addTextQuickReply("8+", PAYLOAD_DONE_8).toList()
+                                .build()));
+    }
+
+    private List<BroadcastStep> notificationSteps(String id, String text) {
+        return Arrays.asList(
+                () -> attachments.sendImage(sendClient, id, Constants.IMG_WATER_REMINDER),
+                () -> sendClient.sendTextMessage(id, String.format(text, getUserName(id))));
+    }
+
 }
@@ -0,0 +1,160 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.exceptions.MessengerIOException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans a broadcast out over a fixed pool of workers while keeping the overall Send API call rate
+ * under a global token bucket. The task of a recipient is a list of steps of one Send API call each.
+ * Throttling errors pause the whole bucket and the failed step is retried with exponential backoff;
+ * the steps before it are not sent again.
+ */
+@Slf4j
+@Component
+public class BroadcastDispatcher {
+
+    @FunctionalInterface
+    public interface BroadcastTask<T> {
+        List<BroadcastStep> steps(T recipient);
+    }
+
+    @FunctionalInterface
+    public interface BroadcastStep {
+        void send() throws MessengerApiException, MessengerIOException;
+    }
+
+    private enum Outcome {
+        SENT, SKIPPED, FAILED
+    }
+
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final TokenBucket tokenBucket;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final long progressIntervalMillis;
+
+    @Autowired
+    public BroadcastDispatcher(@Value("${waterbot.broadcast.concurrency:16}") final int concurrency,
+                               @Value("${waterbot.broadcast.callsPerSecond:100}") final double callsPerSecond,
+                               @Value("${waterbot.broadcast.maxRetries:3}") final int maxRetries,
+                               @Value("${waterbot.broadcast.backoffMillis:1000}") final long backoffMillis,
+                               @Value("${waterbot.broadcast.progressIntervalSeconds:10}") final long progressIntervalSeconds) {
+        log.debug("Initializing BroadcastDispatcher - concurrency: {} | callsPerSecond: {}", concurrency, callsPerSecond);
+        this.executor = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("broadcast-"));
+        this.concurrency = concurrency;
+        this.tokenBucket = new TokenBucket(callsPerSecond, callsPerSecond);
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.progressIntervalMillis = TimeUnit.SECONDS.toMillis(progressIntervalSeconds);
+    }
+
+    /**
+     * Sends to every recipient and blocks until the run is over. A recipient counts as sent once all
+     * its steps are, as skipped if it has none, and as failed otherwise.
+     */
+    public <T> BroadcastReport dispatch(String name, Iterable<T> recipients, BroadcastTask<T> task) {
+        long startedAt = System.currentTimeMillis();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int submitted = 0;
+        long reportedAt = startedAt;
+
+        log.info("Broadcast '{}' started", name);
+        try {
+            for (T recipient : recipients) {
+                inFlight.acquire();
+                submitted++;
+                executor.execute(() -> {
+                    try {
+                        switch (send(recipient, task)) {
+                            case SENT:
+                                sent.incrementAndGet();
+                                break;
+                            case SKIPPED:
+                                skipped.incrementAndGet();
+                                break;
+                            default:
+                                failed.incrementAndGet();
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+
+                long now = System.currentTimeMillis();
+                if (now - reportedAt >= progressIntervalMillis) {
+                    reportedAt = now;
+                    log.info("Broadcast '{}' in progress - submitted: {} | sent: {} | skipped: {} | failed: {}",
+                            name, submitted, sent.get(), skipped.get(), failed.get());
+                }
+            }
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Broadcast '{}' interrupted", name);
+        }
+
+        BroadcastReport report = new BroadcastReport(name, submitted, sent.get(), skipped.get(), failed.get(),
+                System.currentTimeMillis() - startedAt);
+        log.info("Broadcast '{}' finished - {}", name, report);
+        return report;
+    }
+
+    private <T> Outcome send(T recipient, BroadcastTask<T> task) {
+        try {
+            List<BroadcastStep> steps = task.steps(recipient);
+            if (steps.isEmpty()) {
+                return Outcome.SKIPPED;
+            }
+            int attempt = 0;
+            for (int step = 0; step < steps.size(); ) {
+                try {
+                    tokenBucket.acquire(1);
+                    steps.get(step).send();
+                    step++;
+                } catch (MessengerApiException e) {
+                    if (!GraphApiErrors.isThrottling(e.getCode()) || attempt >= maxRetries) {
+                        log.error("Broadcast to {} failed: {}", recipient, e.getMessage());
+                        return Outcome.FAILED;
+                    }
+                    long backoff = backoffMillis << attempt++;
+                    log.warn("Send API throttled (code {}), backing off for {}ms", e.getCode(), backoff);
+                    tokenBucket.pause(backoff);
+                }
+            }
+            return Outcome.SENT;
+        } catch (MessengerIOException e) {
+            log.error("Broadcast to {} failed: {}", recipient, e.getMessage());
+            return Outcome.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.FAILED;
+        } catch (RuntimeException e) {
+            log.error("Broadcast to " + recipient + " failed", e);
+            return Outcome.FAILED;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
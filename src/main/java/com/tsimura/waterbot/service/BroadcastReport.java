@@ -0,0 +1,15 @@
+package com.tsimura.waterbot.service;
+
+import lombok.Value;
+
+@Value
+public class BroadcastReport {
+
+    String name;
+    int submitted;
+    int sent;
+    int skipped;
+    int failed;
+    long durationMillis;
+
+}
@@ -0,0 +1,68 @@
+package com.tsimura.waterbot.service;
+
+/**
+ * Counts consecutive failures of a remote API. After {@code failureThreshold} of them the breaker
+ * opens and refuses calls for {@code openMillis}; then a single trial call is let through, which
+ * closes the breaker again on success or keeps it open for another period on failure.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns false if the call must not be made. A true answer must be followed by
+     * {@link #onSuccess()} or {@link #onFailure(long)}.
+     */
+    public synchronized boolean tryAcquire(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                /*
+                * The trial call is still running
+                */
+                return false;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Returns true if this failure opened the breaker.
+     */
+    public synchronized boolean onFailure(long now) {
+        failures++;
+        if (state == State.OPEN || state == State.CLOSED && failures < failureThreshold) {
+            return false;
+        }
+        state = State.OPEN;
+        openedAt = now;
+        return true;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+}
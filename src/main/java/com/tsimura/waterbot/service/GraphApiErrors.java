@@ -0,0 +1,53 @@
+package com.tsimura.waterbot.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Graph API error codes the bot reacts to. Codes not listed here are permanent errors of the request
+ * itself (bad parameter, expired token...) and are not worth retrying.
+ */
+public final class GraphApiErrors {
+
+    /*
+    * "Slow down": the caller decides how long to wait, see BroadcastDispatcher
+    */
+    private static final Set<Integer> THROTTLING_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(4, 17, 32, 613)));
+
+    /*
+    * Unknown error and temporary API issue, the same call may succeed a moment later
+    */
+    private static final Set<Integer> TRANSIENT_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(1, 2)));
+
+    private static final int USER_UNAVAILABLE_CODE = 551;
+    private static final int PERMISSION_CODE = 200;
+    private static final int USER_UNAVAILABLE_SUBCODE = 1545041;
+    private static final int INVALID_PARAMETER_CODE = 100;
+    private static final int NO_MATCHING_USER_SUBCODE = 2018001;
+
+    private GraphApiErrors() {
+    }
+
+    public static boolean isThrottling(Integer code) {
+        return code != null && THROTTLING_CODES.contains(code);
+    }
+
+    public static boolean isTransient(Integer code) {
+        return code != null && TRANSIENT_CODES.contains(code);
+    }
+
+    /**
+     * The recipient blocked the page, deleted their account or otherwise cannot get messages anymore.
+     */
+    public static boolean isRecipientGone(Integer code, Integer subcode) {
+        if (code == null) {
+            return false;
+        }
+        return code == USER_UNAVAILABLE_CODE
+                || code == PERMISSION_CODE && subcode != null && subcode == USER_UNAVAILABLE_SUBCODE
+                || code == INVALID_PARAMETER_CODE && subcode != null && subcode == NO_MATCHING_USER_SUBCODE;
+    }
+
+}
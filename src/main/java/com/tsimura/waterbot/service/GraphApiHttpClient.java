@@ -0,0 +1,79 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.common.MessengerHttpClient;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP client for the messenger4j clients that sends their Graph API calls to another base url,
+ * e.g. the graph-stub stand-in. messenger4j has the Facebook url built in, so the prefix of every
+ * request url is swapped.
+ *
+ * <p>A failure before the request went out is thrown as {@link NotSentException}; anything later
+ * may have reached Facebook, so the caller cannot tell whether the call took effect.
+ */
+public class GraphApiHttpClient implements MessengerHttpClient {
+
+    public static final String FACEBOOK_GRAPH_URL = "https://graph.facebook.com/v2.8";
+
+    private final String graphUrl;
+    private final int timeoutMillis;
+
+    public GraphApiHttpClient(String graphUrl, int timeoutMillis) {
+        this.graphUrl = graphUrl;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public HttpResponse execute(HttpMethod method, String url, String jsonBody) throws IOException {
+        String target = url.startsWith(FACEBOOK_GRAPH_URL) ? graphUrl + url.substring(FACEBOOK_GRAPH_URL.length()) : url;
+        HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+        connection.setRequestMethod(method.name());
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        byte[] body = jsonBody == null ? null : jsonBody.getBytes(StandardCharsets.UTF_8);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            /*
+            * Also keeps HttpURLConnection from silently sending a POST again after a failure
+            */
+            connection.setFixedLengthStreamingMode(body.length);
+        }
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            throw new NotSentException(target, e);
+        }
+        if (body != null) {
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new HttpResponse(status, in == null ? "" : StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * No connection could be made, so nothing of the request was sent.
+     */
+    public static class NotSentException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NotSentException(String url, IOException cause) {
+            super("Could not connect to " + url + ": " + cause.getMessage(), cause);
+        }
+
+    }
+
+}
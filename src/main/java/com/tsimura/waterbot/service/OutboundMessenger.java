@@ -0,0 +1,213 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.exceptions.MessengerIOException;
+import com.github.messenger4j.send.MessengerSendClient;
+import com.github.messenger4j.send.QuickReply;
+import com.github.messenger4j.send.SenderAction;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends message sequences in order per recipient while different recipients are served concurrently.
+ * Every recipient with pending messages owns a lane; a lane runs one message at a time on the shared pool
+ * and disappears once it is empty, so memory is bounded by the number of active conversations.
+ */
+@Slf4j
+@Component
+public class OutboundMessenger {
+
+    /**
+     * One outbound call. Steps get the recipient at send time, so a step without per-user content
+     * can be built once and shared by every conversation.
+     */
+    @FunctionalInterface
+    public interface Step {
+        void send(MessengerSendClient client, String recipientId) throws MessengerApiException, MessengerIOException;
+    }
+
+    private final MessengerSendClient sendClient;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    @Autowired
+    public OutboundMessenger(final MessengerSendClient sendClient,
+                             @Value("${waterbot.outbound.threads:16}") final int threads) {
+        log.debug("Initializing OutboundMessenger - threads: {}", threads);
+        this.sendClient = sendClient;
+        this.executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("outbound-"));
+    }
+
+    /**
+     * Starts a new conversation flow: messages still pending for the recipient are dropped.
+     */
+    public Sequence newFlow(String recipientId) {
+        lanes.computeIfPresent(recipientId, (id, lane) -> {
+            lane.steps.clear();
+            return lane;
+        });
+        return new Sequence(recipientId);
+    }
+
+    /**
+     * Appends messages after whatever is already pending for the recipient.
+     */
+    public Sequence sequence(String recipientId) {
+        return new Sequence(recipientId);
+    }
+
+    public int getActiveLanes() {
+        return lanes.size();
+    }
+
+    private void enqueue(String recipientId, List<Runnable> steps) {
+        lanes.compute(recipientId, (id, lane) -> {
+            if (lane == null) {
+                lane = new Lane(id);
+                try {
+                    executor.execute(lane);
+                } catch (RejectedExecutionException e) {
+                    log.warn("Outbound messenger is shut down, dropping {} messages to {}", steps.size(), recipientId);
+                    return null;
+                }
+            }
+            lane.steps.addAll(steps);
+            return lane;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private class Lane implements Runnable {
+
+        private final String recipientId;
+        private final Queue<Runnable> steps = new ArrayDeque<>();
+
+        private Lane(String recipientId) {
+            this.recipientId = recipientId;
+        }
+
+        @Override
+        public void run() {
+            Runnable[] next = new Runnable[1];
+            while (true) {
+                lanes.computeIfPresent(recipientId, (id, lane) -> {
+                    next[0] = lane.steps.poll();
+                    return next[0] == null ? null : lane;
+                });
+                if (next[0] == null) {
+                    return;
+                }
+                try {
+                    next[0].run();
+                } catch (RuntimeException e) {
+                    log.error("Message to {} could not be sent. An unexpected error occurred.", recipientId, e);
+                }
+                if (!reschedule()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Hands the rest of the lane back to the pool so other recipients get their turn.
+         * Returns true when the pool is shutting down and the lane must be drained on this thread.
+         */
+        private boolean reschedule() {
+            boolean[] drainInline = new boolean[1];
+            lanes.computeIfPresent(recipientId, (id, lane) -> {
+                if (lane.steps.isEmpty()) {
+                    return null;
+                }
+                try {
+                    executor.execute(lane);
+                } catch (RejectedExecutionException e) {
+                    drainInline[0] = true;
+                }
+                return lane;
+            });
+            return drainInline[0];
+        }
+
+    }
+
+    /**
+     * Messages for one recipient; nothing is sent before {@link #send()}. If one message fails
+     * the rest of the sequence is skipped.
+     */
+    public class Sequence {
+
+        private final String recipientId;
+        private final List<Step> steps = new ArrayList<>();
+
+        private Sequence(String recipientId) {
+            this.recipientId = recipientId;
+        }
+
+        public Sequence text(String text) {
+            return step((client, id) -> client.sendTextMessage(id, text));
+        }
+
+        public Sequence text(String text, List<QuickReply> quickReplies) {
+            return step((client, id) -> client.sendTextMessage(id, text, quickReplies));
+        }
+
+        public Sequence image(String url) {
+            return step((client, id) -> client.sendImageAttachment(id, url));
+        }
+
+        public Sequence action(SenderAction action) {
+            return step((client, id) -> client.sendSenderAction(id, action));
+        }
+
+        public Sequence step(Step step) {
+            steps.add(step);
+            return this;
+        }
+
+        public Sequence steps(List<Step> steps) {
+            this.steps.addAll(steps);
+            return this;
+        }
+
+        public void send() {
+            boolean[] aborted = new boolean[1];
+            List<Runnable> tasks = new ArrayList<>(steps.size());
+            for (Step step : steps) {
+                tasks.add(() -> {
+                    if (aborted[0]) {
+                        return;
+                    }
+                    try {
+                        step.send(sendClient, recipientId);
+                    } catch (MessengerApiException | MessengerIOException e) {
+                        aborted[0] = true;
+                        log.warn("Message to {} could not be sent: {}", recipientId, e.getMessage());
+                    }
+                });
+            }
+            enqueue(recipientId, tasks);
+        }
+
+    }
+
+}
@@ -0,0 +1,13 @@
+package com.tsimura.waterbot.service;
+
+import lombok.Value;
+
+@Value
+public class Reminder {
+
+    String userId;
+    int frequency;
+    int localHour;
+    long deadline;
+
+}
@@ -0,0 +1,193 @@
+package com.tsimura.waterbot.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the next reminder of every subscriber in a {@link TimingWheel}, keyed by its UTC delivery time,
+ * so a reminder run only touches the users that are due. Every user gets a fixed offset into the first
+ * {@code windowMinutes} of each reminder hour, derived from the user id, which spreads the sends of an
+ * hour evenly over the window instead of starting them all at once. Users are rescheduled on every
+ * change in the {@link SubscriberRegistry}; entries made stale by a change are dropped when they expire.
+ *
+ * <p>The wheel holds every subscriber, whichever instance serves them, and only moves forward from
+ * startup. Reminders a shard missed before this instance took it over are caught up from the time its
+ * previous owner delivered them to: every user of the shard gets the latest reminder missed within the
+ * last {@code catchUpMinutes}.
+ */
+@Slf4j
+@Component
+public class ReminderScheduler {
+
+    /*
+    * Local reminder hour -> minimal frequency the user must have chosen to receive it
+    */
+    static final Map<Integer, Integer> REMINDER_HOURS;
+
+    static {
+        Map<Integer, Integer> hours = new LinkedHashMap<>();
+        hours.put(10, 1);
+        hours.put(14, 2);
+        hours.put(18, 3);
+        hours.put(20, 1);
+        REMINDER_HOURS = Collections.unmodifiableMap(hours);
+    }
+
+    /*
+    * Offset of users whose timezone is not known yet, until the profile refresh fills it in. Before
+    * timezones were stored every hour was read on the server clock, which is UTC on Heroku
+    */
+    static final float DEFAULT_TIMEZONE = 0f;
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final SubscriberRegistry registry;
+    private final long windowMillis;
+    private final long catchUpMillis;
+    private final TimingWheel<String> wheel;
+    private final List<Map.Entry<String, Long>> overdue = new ArrayList<>();
+
+    @Autowired
+    public ReminderScheduler(final SubscriberRegistry registry,
+                             @Value("${waterbot.reminders.windowMinutes:30}") final long windowMinutes,
+                             @Value("${waterbot.reminders.tickMillis:1000}") final long tickMillis,
+                             @Value("${waterbot.reminders.catchUpMinutes:60}") final long catchUpMinutes) {
+        log.debug("Initializing ReminderScheduler - windowMinutes: {} | tickMillis: {} | catchUpMinutes: {}",
+                windowMinutes, tickMillis, catchUpMinutes);
+        this.registry = registry;
+        this.windowMillis = Math.max(1, Math.min(TimeUnit.MINUTES.toMillis(windowMinutes), HOUR));
+        this.catchUpMillis = TimeUnit.MINUTES.toMillis(catchUpMinutes);
+        this.wheel = new TimingWheel<>(tickMillis, 64, System.currentTimeMillis());
+    }
+
+    @PostConstruct
+    public void start() {
+        registry.addListener(this::reschedule);
+        registry.forEachUserId(this::reschedule);
+        log.info("Scheduled reminders of {} subscribers", size());
+    }
+
+    /**
+     * Schedules the next reminder of the user from now on, if subscribed.
+     */
+    public synchronized void reschedule(String userId) {
+        int frequency = registry.getFrequency(userId);
+        if (frequency > 0) {
+            schedule(userId, nextDelivery(userId, frequency, timezone(userId), System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the reminders due by {@code now} for users of the given shards and schedules the next
+     * reminder of every user that was due. Users of the shards in {@code takenOver} also get the latest
+     * reminder they missed since the mapped time.
+     */
+    public synchronized List<Reminder> pollDue(long now, Set<Integer> shards, Map<Integer, Long> takenOver) {
+        List<Map.Entry<String, Long>> expired = new ArrayList<>(overdue);
+        overdue.clear();
+        wheel.advance(now, (userId, deadline) -> expired.add(new SimpleImmutableEntry<>(userId, deadline)));
+
+        List<Reminder> due = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Map.Entry<String, Long> entry : expired) {
+            String userId = entry.getKey();
+            long deadline = entry.getValue();
+            int frequency = registry.getFrequency(userId);
+            float timezone = timezone(userId);
+            if (frequency <= 0 || nextDelivery(userId, frequency, timezone, deadline - 1) != deadline
+                    || !seen.add(userId)) {
+                continue;
+            }
+            schedule(userId, nextDelivery(userId, frequency, timezone, deadline));
+            if (shards.contains(registry.getShard(userId))) {
+                due.add(new Reminder(userId, frequency, localHour(userId, timezone, deadline), deadline));
+            }
+        }
+        if (!takenOver.isEmpty()) {
+            catchUp(now, takenOver, seen, due);
+        }
+        return due;
+    }
+
+    /*
+    * Reminders of the taken over shards that fell due before the wheel reached them. Users due in this
+    * run are in seen and already handled
+    */
+    private void catchUp(long now, Map<Integer, Long> takenOver, Set<String> seen, List<Reminder> due) {
+        int caughtUp = due.size();
+        registry.forEachUserId(userId -> {
+            Long through = takenOver.get(registry.getShard(userId));
+            int frequency = registry.getFrequency(userId);
+            float timezone = timezone(userId);
+            if (through == null || frequency <= 0 || seen.contains(userId)) {
+                return;
+            }
+            long missed = -1;
+            for (long deadline = nextDelivery(userId, frequency, timezone, Math.max(through, now - catchUpMillis));
+                 deadline <= now; deadline = nextDelivery(userId, frequency, timezone, deadline)) {
+                missed = deadline;
+            }
+            if (missed >= 0) {
+                due.add(new Reminder(userId, frequency, localHour(userId, timezone, missed), missed));
+            }
+        });
+        log.info("Caught up {} missed reminders of shards {}", due.size() - caughtUp, takenOver.keySet());
+    }
+
+    public synchronized int size() {
+        return wheel.size() + overdue.size();
+    }
+
+    private void schedule(String userId, long deadline) {
+        if (!wheel.schedule(userId, deadline)) {
+            overdue.add(new SimpleImmutableEntry<>(userId, deadline));
+        }
+    }
+
+    /*
+    * First delivery after the given time: a reminder hour of the user's frequency in the user's
+    * timezone, plus the user's offset into the window
+    */
+    private long nextDelivery(String userId, int frequency, float timezone, long after) {
+        long offset = offset(userId);
+        long timezoneMillis = Math.round(timezone * HOUR);
+        long localDay = Math.floorDiv(after + timezoneMillis, DAY) * DAY;
+        for (long day = localDay; ; day += DAY) {
+            for (Map.Entry<Integer, Integer> hour : REMINDER_HOURS.entrySet()) {
+                long deadline = day + hour.getKey() * HOUR + offset - timezoneMillis;
+                if (frequency >= hour.getValue() && deadline > after) {
+                    return deadline;
+                }
+            }
+        }
+    }
+
+    private float timezone(String userId) {
+        Float timezone = registry.getTimezone(userId);
+        return timezone != null ? timezone : DEFAULT_TIMEZONE;
+    }
+
+    private int localHour(String userId, float timezone, long deadline) {
+        return (int) Math.floorMod(Math.floorDiv(deadline - offset(userId) + Math.round(timezone * HOUR), HOUR), 24L);
+    }
+
+    private long offset(String userId) {
+        int hash = userId.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), windowMillis);
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.tsimura.waterbot.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.messenger4j.common.MessengerHttpClient;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client shared by the messenger4j Send API and User Profile API clients. Every Graph API call
+ * gets a connect/read timeout and an overall time budget; within that budget, 5xx responses, transient
+ * error codes and I/O errors are retried with exponential backoff and full jitter. A POST is only
+ * retried after an I/O error if it never went out: a Send API call that timed out reading the
+ * response may have been delivered, so it fails instead of risking a second message. All other
+ * error responses are returned to messenger4j as they are, throttling included, so callers keep
+ * deciding how long to slow down.
+ *
+ * <p>Retryable failures also feed a {@link CircuitBreaker}: while it is open calls fail at once with
+ * an {@link IOException}, so threads stop piling up behind an API that is down. When the Send API says
+ * the recipient is gone (blocked the page, deleted the account) the user is unsubscribed.
+ */
+@Slf4j
+@Component
+public class ResilientHttpClient implements MessengerHttpClient {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final MessengerHttpClient delegate;
+    private final SubscriberRegistry subscriberRegistry;
+    private final BotMetrics metrics;
+    private final CircuitBreaker circuitBreaker;
+    private final long callTimeoutMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+
+    /*
+    * messenger4j keeps the code of an error response but drops its subcode, see lastErrorSubcode()
+    */
+    private final ThreadLocal<Integer> lastErrorSubcode = new ThreadLocal<>();
+
+    @Autowired
+    public ResilientHttpClient(@Value("${waterbot.graph.url:" + GraphApiHttpClient.FACEBOOK_GRAPH_URL + "}") final String graphUrl,
+                               @Value("${waterbot.graph.timeoutMillis:10000}") final int timeoutMillis,
+                               @Value("${waterbot.graph.callTimeoutMillis:30000}") final long callTimeoutMillis,
+                               @Value("${waterbot.graph.maxAttempts:3}") final int maxAttempts,
+                               @Value("${waterbot.graph.backoffMillis:200}") final long backoffMillis,
+                               @Value("${waterbot.graph.maxBackoffMillis:5000}") final long maxBackoffMillis,
+                               @Value("${waterbot.graph.circuit.failureThreshold:20}") final int failureThreshold,
+                               @Value("${waterbot.graph.circuit.openMillis:30000}") final long openMillis,
+                               final SubscriberRegistry subscriberRegistry,
+                               final BotMetrics metrics) {
+        log.debug("Initializing ResilientHttpClient - graphUrl: {} | timeoutMillis: {} | maxAttempts: {} | failureThreshold: {}",
+                graphUrl, timeoutMillis, maxAttempts, failureThreshold);
+        this.delegate = new GraphApiHttpClient(graphUrl, timeoutMillis);
+        this.subscriberRegistry = subscriberRegistry;
+        this.metrics = metrics;
+        this.circuitBreaker = new CircuitBreaker(failureThreshold, openMillis);
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    @Override
+    public HttpResponse execute(HttpMethod method, String url, String jsonBody) throws IOException {
+        long deadline = System.currentTimeMillis() + callTimeoutMillis;
+        lastErrorSubcode.remove();
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+                metrics.counter("graph.circuit", "rejected").increment();
+                throw new IOException("Graph API circuit is open");
+            }
+
+            HttpResponse response = null;
+            IOException failure = null;
+            JsonNode error = null;
+            try {
+                response = delegate.execute(method, url, jsonBody);
+                if (response.getStatusCode() >= 400) {
+                    error = readError(response.getBody());
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                onFailure();
+                throw e;
+            }
+
+            Integer code = intValue(error, "code");
+            Integer subcode = intValue(error, "error_subcode");
+            lastErrorSubcode.set(subcode);
+            if (failure != null && method == HttpMethod.POST && !(failure instanceof GraphApiHttpClient.NotSentException)) {
+                onFailure();
+                throw failure;
+            }
+            boolean retryable = failure != null || response.getStatusCode() >= 500 || GraphApiErrors.isTransient(code);
+            if (!retryable) {
+                circuitBreaker.onSuccess();
+                if (GraphApiErrors.isRecipientGone(code, subcode)) {
+                    unsubscribeRecipient(jsonBody);
+                }
+                return response;
+            }
+            onFailure();
+
+            long backoff = ThreadLocalRandom.current().nextLong(Math.min(maxBackoffMillis, backoffMillis << (attempt - 1)) + 1);
+            if (attempt >= maxAttempts || System.currentTimeMillis() + backoff >= deadline) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+            metrics.counter("graph.retries", failure != null ? "io" : String.valueOf(code != null ? code : response.getStatusCode())).increment();
+            log.debug("Graph API call failed ({}), retrying in {}ms", failure != null ? failure.getMessage() : response.getStatusCode(), backoff);
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off");
+            }
+        }
+    }
+
+    /**
+     * Graph API error subcode of the last call made on the calling thread, null if it had none. Code 100
+     * for instance means a bad parameter or, with subcode 2018001, a recipient that is gone.
+     */
+    public Integer lastErrorSubcode() {
+        return lastErrorSubcode.get();
+    }
+
+    private void onFailure() {
+        if (circuitBreaker.onFailure(System.currentTimeMillis())) {
+            metrics.counter("graph.circuit", "opened").increment();
+            log.warn("Graph API keeps failing, circuit opened");
+        }
+    }
+
+    private void unsubscribeRecipient(String jsonBody) {
+        String recipientId = null;
+        try {
+            JsonNode recipient = jsonBody == null ? null : OBJECT_MAPPER.readTree(jsonBody).path("recipient").path("id");
+            recipientId = recipient == null || recipient.isMissingNode() ? null : recipient.asText();
+        } catch (IOException e) {
+            log.warn("Could not read recipient of a failed Send API call: {}", e.getMessage());
+        }
+        if (recipientId == null || subscriberRegistry.getFrequency(recipientId) == 0) {
+            return;
+        }
+
+        metrics.counter("graph.recipients", "unsubscribed").increment();
+        log.info("User {} cannot be reached anymore, unsubscribing", recipientId);
+        try {
+            subscriberRegistry.setReminder(recipientId, 0);
+        } catch (DataAccessException e) {
+            log.warn("Could not unsubscribe user {}: {}", recipientId, e.getMessage());
+        }
+    }
+
+    /*
+    * The "error" object of a Graph API error response, null if the body is not one
+    */
+    private static JsonNode readError(String body) {
+        try {
+            JsonNode root = body == null || body.isEmpty() ? null : OBJECT_MAPPER.readTree(body);
+            JsonNode error = root == null ? null : root.get("error");
+            return error != null && error.isObject() ? error : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Integer intValue(JsonNode node, String field) {
+        JsonNode value = node == null ? null : node.get(field);
+        return value != null && value.canConvertToInt() ? value.intValue() : null;
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.tsimura.waterbot.service;
+
+import com.tsimura.waterbot.data.ShardLeaseRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits users into {@code shardCount} shards by hash of the user id and keeps this instance holding
+ * a fair share of them through leases in Postgres. Every heartbeat the node renews its leases,
+ * gives up shards above its share and claims free or expired ones, so shards of a dead node are
+ * taken over once their leases expire. A shard given up leaves the owned set at once, but its lease
+ * is only released by {@link #releaseGivenUp()} after the reminder run that may still be sending for
+ * it has recorded its progress.
+ *
+ * <p>Lease expiry and reminder progress are all on the database clock: every heartbeat measures how
+ * far the local clock is off, and reminder runs take their time from {@link #currentTimeMillis()}.
+ * The owner of a shard records how far its reminders were delivered. Whenever a shard joins the
+ * owned set (claimed from another node, taken over after a restart or back after a failed heartbeat)
+ * that time is handed once to the reminder run through {@link #pollTakenOver(Set)}, so reminders that
+ * fell due while nobody served the shard are caught up instead of lost.
+ */
+@Slf4j
+@Component
+public class ShardCoordinator {
+
+    private final ShardLeaseRepository repository;
+    private final int shardCount;
+    private final int leaseSeconds;
+    private final String nodeId;
+
+    private volatile Set<Integer> ownedShards = Collections.emptySet();
+    private volatile long clockOffsetMillis;
+
+    /*
+    * Shards above the fair share, out of the owned set but still leased until releaseGivenUp()
+    */
+    private final Set<Integer> givenUp = ConcurrentHashMap.newKeySet();
+
+    /*
+    * Shard -> time its reminders were delivered up to, for shards that joined the owned set and were
+    * not yet caught up
+    */
+    private final Map<Integer, Long> takenOver = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ShardCoordinator(final ShardLeaseRepository repository,
+                            @Value("${waterbot.shards.count:16}") final int shardCount,
+                            @Value("${waterbot.shards.leaseSeconds:90}") final int leaseSeconds) {
+        this.repository = repository;
+        this.shardCount = shardCount;
+        this.leaseSeconds = leaseSeconds;
+        this.nodeId = hostName() + "-" + UUID.randomUUID();
+        log.debug("Initializing ShardCoordinator - nodeId: {} | shardCount: {}", nodeId, shardCount);
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public Set<Integer> getOwnedShards() {
+        return ownedShards;
+    }
+
+    /**
+     * Current time on the database clock, as of the last heartbeat's measure of the local clock.
+     */
+    public long currentTimeMillis() {
+        return System.currentTimeMillis() + clockOffsetMillis;
+    }
+
+    @Scheduled(fixedDelayString = "${waterbot.shards.heartbeatMillis:30000}")
+    public void rebalance() {
+        try {
+            repository.heartbeat(nodeId);
+            measureClock();
+            int liveNodes = Math.max(1, repository.countLiveNodes(leaseSeconds));
+            int fairShare = (shardCount + liveNodes - 1) / liveNodes;
+
+            /*
+            * Leases of shards given up are renewed too until they are released
+            */
+            Set<Integer> owned = new TreeSet<>(repository.renewLeases(nodeId, leaseSeconds));
+            owned.removeAll(givenUp);
+            Set<Integer> surplus = new TreeSet<>();
+            while (owned.size() > fairShare) {
+                Integer shard = owned.iterator().next();
+                owned.remove(shard);
+                surplus.add(shard);
+            }
+            int offset = ThreadLocalRandom.current().nextInt(shardCount);
+            for (int i = 0; i < shardCount && owned.size() < fairShare; i++) {
+                int shard = (offset + i) % shardCount;
+                if (!owned.contains(shard) && !surplus.contains(shard) && !givenUp.contains(shard)
+                        && repository.claimLease(shard, nodeId, leaseSeconds)) {
+                    owned.add(shard);
+                }
+            }
+
+            /*
+            * Published before the shards themselves, so a run that sees a shard also sees its entry
+            */
+            for (Integer shard : owned) {
+                if (!ownedShards.contains(shard)) {
+                    Long through = repository.getDeliveredThrough(shard);
+                    if (through != null) {
+                        takenOver.put(shard, through);
+                    }
+                }
+            }
+
+            if (!owned.equals(ownedShards)) {
+                log.info("Node {} now owns shards {} ({} live nodes)", nodeId, owned, liveNodes);
+            }
+            ownedShards = Collections.unmodifiableSet(owned);
+
+            /*
+            * Only after the shards left the owned set: a run that still saw them records their
+            * progress before it releases them
+            */
+            givenUp.addAll(surplus);
+        } catch (DataAccessException e) {
+            log.error("Shard rebalance failed, releasing all shards until the next heartbeat", e);
+            ownedShards = Collections.emptySet();
+        }
+    }
+
+    /**
+     * Removes and returns the delivered-through time of every shard of {@code shards} that joined the
+     * owned set since it was last polled.
+     */
+    public Map<Integer, Long> pollTakenOver(Set<Integer> shards) {
+        if (takenOver.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, Long> polled = new HashMap<>();
+        for (Integer shard : shards) {
+            Long through = takenOver.remove(shard);
+            if (through != null) {
+                polled.put(shard, through);
+            }
+        }
+        return polled;
+    }
+
+    /**
+     * Records that every reminder of {@code shards} due by {@code through} was handled.
+     */
+    public void markDelivered(Set<Integer> shards, long through) {
+        if (shards.isEmpty()) {
+            return;
+        }
+        try {
+            repository.saveDeliveredThrough(shards, through);
+        } catch (DataAccessException e) {
+            log.warn("Could not record reminders of shards {} as delivered: {}", shards, e.getMessage());
+        }
+    }
+
+    /**
+     * Releases the leases of shards given up since the last call. Called by the reminder run after it
+     * recorded its progress, so no run is sending for them anymore and the next owner catches up from
+     * where this node really stopped.
+     */
+    public void releaseGivenUp() {
+        if (givenUp.isEmpty()) {
+            return;
+        }
+        Set<Integer> released = new TreeSet<>();
+        try {
+            for (Integer shard : givenUp) {
+                repository.releaseLease(shard, nodeId);
+                givenUp.remove(shard);
+                released.add(shard);
+            }
+        } catch (DataAccessException e) {
+            log.warn("Could not release shards {}: {}", givenUp, e.getMessage());
+        }
+        if (!released.isEmpty()) {
+            log.info("Node {} released shards {}", nodeId, released);
+        }
+    }
+
+    /*
+    * Halfway through the round trip is the best guess of when the database read its clock
+    */
+    private void measureClock() {
+        long sentAt = System.currentTimeMillis();
+        long databaseTime = repository.getDatabaseTimeMillis();
+        long receivedAt = System.currentTimeMillis();
+        clockOffsetMillis = databaseTime - (sentAt + receivedAt) / 2;
+        log.debug("Local clock is {}ms off the database clock", -clockOffsetMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ownedShards = Collections.emptySet();
+        try {
+            repository.removeNode(nodeId);
+        } catch (DataAccessException e) {
+            log.warn("Could not release shards of node {}: {}", nodeId, e.getMessage());
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+package com.tsimura.waterbot.service;
+
+import com.tsimura.waterbot.data.BotRepository;
+import com.tsimura.waterbot.data.SubscriberState;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * In-memory copy of the users table, so reminder runs and handlers never wait for the database.
+ * Writes go through to Postgres, which notifies {@link BotRepository#SUBSCRIBERS_CHANNEL}; every
+ * instance listens on the channel and reloads the users changed since its last reload. A periodic
+ * reload catches up on notifications lost while the listener was reconnecting.
+ *
+ * <p>Users live in an open-addressing table of parallel arrays: user ids, and the frequency, timezone
+ * and shard of every user packed into one long. Readers never lock. A state is written in one piece,
+ * so a reader sees a user either before or after a change, never half of it. A new user's state is
+ * written before its id is published with release semantics, and ids are read with acquire semantics,
+ * so a reader that finds the id also sees the state.
+ */
+@Slf4j
+@Component
+public class SubscriberRegistry {
+
+    /*
+    * Rows are re-read from this far before the last scan started, so rows of transactions that
+    * started before the scan but committed after it read past them are not missed
+    */
+    private static final long RELOAD_OVERLAP_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private final BotRepository repository;
+    private final DataSource dataSource;
+    private final int shardCount;
+    private final int listenIntervalMillis;
+
+    private final Object reloadLock = new Object();
+    private Timestamp reloadedUntil = new Timestamp(0);
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Table table = new Table(1024);
+    private volatile boolean listening;
+    private Thread listener;
+
+    @Autowired
+    public SubscriberRegistry(final BotRepository repository,
+                              final DataSource dataSource,
+                              @Value("${waterbot.shards.count:16}") final int shardCount,
+                              @Value("${waterbot.subscribers.listenIntervalMillis:1000}") final int listenIntervalMillis) {
+        this.repository = repository;
+        this.dataSource = dataSource;
+        this.shardCount = shardCount;
+        this.listenIntervalMillis = listenIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        reload();
+        log.info("Loaded {} subscribers", size());
+        listening = true;
+        listener = new Thread(this::listen, "subscriber-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        listening = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    public void setReminder(String userId, int frequency) {
+        apply(repository.saveUserReminder(userId, frequency, shardCount));
+    }
+
+    public void setTimezone(String userId, float timezone) {
+        apply(repository.saveUserTimezone(userId, timezone, shardCount));
+    }
+
+    /**
+     * Reminder frequency of the user, 0 if not subscribed.
+     */
+    public int getFrequency(String userId) {
+        Table current = table;
+        int slot = current.slot(userId);
+        return current.userIds.get(slot) == null ? 0 : frequency(current.states.get(slot));
+    }
+
+    /**
+     * Timezone of the user, null if unknown.
+     */
+    public Float getTimezone(String userId) {
+        Table current = table;
+        int slot = current.slot(userId);
+        if (current.userIds.get(slot) == null) {
+            return null;
+        }
+        float timezone = timezone(current.states.get(slot));
+        return Float.isNaN(timezone) ? null : timezone;
+    }
+
+    /**
+     * Shard of the user, -1 if not subscribed.
+     */
+    public int getShard(String userId) {
+        Table current = table;
+        int slot = current.slot(userId);
+        return current.userIds.get(slot) == null ? -1 : shard(current.states.get(slot));
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    public void forEachUserId(Consumer<String> action) {
+        AtomicReferenceArray<String> userIds = table.userIds;
+        for (int i = 0; i < userIds.length(); i++) {
+            String userId = userIds.get(i);
+            if (userId != null) {
+                action.accept(userId);
+            }
+        }
+    }
+
+    /**
+     * Called with the user id after every change of a user, whether made here or by another instance.
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Applies users changed since the last reload.
+     */
+    @Scheduled(fixedDelayString = "${waterbot.subscribers.reloadMillis:60000}")
+    public void reload() {
+        synchronized (reloadLock) {
+            /*
+            * Not the newest updated_at seen: pages are read one after another, and a row of an earlier
+            * page changed while later ones were read is older than their rows. Only what changed before
+            * the scan started is sure to have been read, on the clock updated_at is written with
+            */
+            Timestamp scanStartedAt = repository.getDatabaseTime();
+            int changed = 0;
+            for (SubscriberState state : repository.scanSubscribersUpdatedSince(reloadedUntil, shardCount)) {
+                apply(state);
+                changed++;
+            }
+            reloadedUntil = new Timestamp(Math.max(reloadedUntil.getTime(), scanStartedAt.getTime() - RELOAD_OVERLAP_MILLIS));
+            log.debug("Reloaded {} subscribers", changed);
+        }
+    }
+
+    /**
+     * Applies a change to the table. Entries are never removed, an unsubscribed user has frequency 0.
+     */
+    public synchronized void apply(SubscriberState state) {
+        if (state == null) {
+            return;
+        }
+        Table current = table;
+        int slot = current.slot(state.getUserId());
+        if (current.userIds.get(slot) == null && (current.size + 1) * 4 > current.userIds.length() * 3) {
+            current = current.grow();
+            table = current;
+            slot = current.slot(state.getUserId());
+        }
+        long packed = pack(state.getFrequency(), state.getTimezone() == null ? Float.NaN : state.getTimezone(), state.getShard());
+        boolean added = current.userIds.get(slot) == null;
+        if (!added && current.states.get(slot) == packed) {
+            return;
+        }
+
+        /*
+        * Release stores: the state is visible before the id that makes the slot readable
+        */
+        current.states.lazySet(slot, packed);
+        if (added) {
+            current.userIds.lazySet(slot, state.getUserId());
+            current.size++;
+        }
+        listeners.forEach(listener -> listener.accept(state.getUserId()));
+    }
+
+    private void listen() {
+        while (listening) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + BotRepository.SUBSCRIBERS_CHANNEL);
+                }
+                try {
+                    /*
+                    * Changes made before LISTEN took effect are only seen by a reload
+                    */
+                    reload();
+                    PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                    while (listening) {
+                        TimeUnit.MILLISECONDS.sleep(listenIntervalMillis);
+                        /*
+                        * The driver only reads pending notifications while running a statement
+                        */
+                        try (Statement statement = connection.createStatement()) {
+                            statement.execute("SELECT 1");
+                        }
+                        PGNotification[] notifications = pgConnection.getNotifications();
+                        if (notifications != null && notifications.length > 0) {
+                            reload();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("UNLISTEN *");
+                    }
+                }
+            } catch (SQLException | DataAccessException e) {
+                if (listening) {
+                    log.warn("Subscriber listener failed, reconnecting: {}", e.getMessage());
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(listenIntervalMillis);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+    * Timezone bits in the high half, shard and frequency in the low half. NaN timezones are canonical,
+    * so equal states pack to equal longs
+    */
+    private static long pack(int frequency, float timezone, int shard) {
+        return (long) Float.floatToIntBits(timezone) << 32 | (shard & 0xffffL) << 8 | frequency & 0xffL;
+    }
+
+    private static int frequency(long state) {
+        return (byte) state;
+    }
+
+    private static int shard(long state) {
+        return (short) (state >>> 8);
+    }
+
+    private static float timezone(long state) {
+        return Float.intBitsToFloat((int) (state >>> 32));
+    }
+
+    private static final class Table {
+
+        final AtomicReferenceArray<String> userIds;
+        final AtomicLongArray states;
+        int size;
+
+        Table(int capacity) {
+            userIds = new AtomicReferenceArray<>(capacity);
+            states = new AtomicLongArray(capacity);
+        }
+
+        /*
+        * Slot holding the user, or the empty slot where it would be inserted
+        */
+        int slot(String userId) {
+            int mask = userIds.length() - 1;
+            int hash = userId.hashCode() * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            String found;
+            while ((found = userIds.get(slot)) != null && !found.equals(userId)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        Table grow() {
+            /*
+            * Ordering within the new table does not matter, it is published through the volatile table field
+            */
+            Table grown = new Table(userIds.length() * 2);
+            for (int i = 0; i < userIds.length(); i++) {
+                String userId = userIds.get(i);
+                if (userId != null) {
+                    int slot = grown.slot(userId);
+                    grown.states.lazySet(slot, states.get(i));
+                    grown.userIds.lazySet(slot, userId);
+                }
+            }
+            grown.size = size;
+            return grown;
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.tsimura.waterbot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Hierarchical timing wheel. The lowest wheel has {@code wheelSize} buckets of {@code tickMillis}
+ * each; items further away go to an overflow wheel whose tick is the whole span of the wheel below,
+ * created when first needed. When time reaches a bucket of an upper wheel its items move down, so
+ * scheduling and expiring an item cost O(1) per level however many items are waiting.
+ *
+ * <p>Items cannot be cancelled; callers check on expiry whether an item is still wanted.
+ * Not thread-safe.
+ */
+public class TimingWheel<T> {
+
+    private static final class Entry<T> {
+
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+    }
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long spanMillis;
+    private final List<List<Entry<T>>> buckets;
+    private long currentTime;
+    private int size;
+    private TimingWheel<T> overflow;
+
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.spanMillis = tickMillis * wheelSize;
+        this.buckets = new ArrayList<>(Collections.nCopies(wheelSize, null));
+        this.currentTime = startMillis - Math.floorMod(startMillis, tickMillis);
+    }
+
+    /**
+     * Adds the item. Returns false without adding it if {@code deadline} falls in the current tick.
+     */
+    public boolean schedule(T item, long deadline) {
+        return schedule(new Entry<>(item, deadline));
+    }
+
+    private boolean schedule(Entry<T> entry) {
+        if (entry.deadline < currentTime + tickMillis) {
+            return false;
+        }
+        if (entry.deadline < currentTime + spanMillis) {
+            int index = (int) Math.floorMod(entry.deadline / tickMillis, (long) wheelSize);
+            List<Entry<T>> bucket = buckets.get(index);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.set(index, bucket);
+            }
+            bucket.add(entry);
+        } else {
+            if (overflow == null) {
+                overflow = new TimingWheel<>(spanMillis, wheelSize, currentTime);
+            }
+            overflow.schedule(entry);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves time forward to {@code now} and passes every item whose tick has been reached to
+     * {@code expired} with its deadline.
+     */
+    public void advance(long now, ObjLongConsumer<T> expired) {
+        advance(now, (Consumer<Entry<T>>) entry -> expired.accept(entry.item, entry.deadline));
+    }
+
+    /*
+    * Items of every bucket reached go to {@code due}; items handed down by the overflow wheel are
+    * scheduled here, or go to {@code due} too if they fall in the current tick
+    */
+    private void advance(long now, Consumer<Entry<T>> due) {
+        while (currentTime + tickMillis <= now) {
+            currentTime += tickMillis;
+            if (overflow != null && Math.floorMod(currentTime, spanMillis) == 0) {
+                overflow.advance(currentTime, (Consumer<Entry<T>>) entry -> {
+                    size--;
+                    if (!schedule(entry)) {
+                        due.accept(entry);
+                    }
+                });
+            }
+            List<Entry<T>> bucket = take(currentTime);
+            if (bucket != null) {
+                size -= bucket.size();
+                bucket.forEach(due);
+            }
+        }
+    }
+
+    private List<Entry<T>> take(long time) {
+        int index = (int) Math.floorMod(time / tickMillis, (long) wheelSize);
+        return buckets.set(index, null);
+    }
+
+    /**
+     * Number of items waiting, including the ones in overflow wheels.
+     */
+    public int size() {
+        return size;
+    }
+
+}
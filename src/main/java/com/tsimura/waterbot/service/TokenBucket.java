@@ -0,0 +1,55 @@
+package com.tsimura.waterbot.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking token bucket shared by all broadcast workers. {@link #pause(long)} empties the bucket
+ * and holds every caller back, which is how the dispatcher reacts to Send API throttling.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long refilledAt;
+    private long pausedUntil;
+
+    public TokenBucket(double tokensPerSecond, double capacity) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+        this.pausedUntil = refilledAt;
+    }
+
+    public void acquire(int permits) throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                refill(now);
+                if (now - pausedUntil >= 0 && tokens >= permits) {
+                    tokens -= permits;
+                    return;
+                }
+                waitNanos = Math.max(pausedUntil - now, (long) ((permits - tokens) / tokensPerNano));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    public synchronized void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (until - pausedUntil > 0) {
+            pausedUntil = until;
+        }
+        tokens = 0;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+
+}
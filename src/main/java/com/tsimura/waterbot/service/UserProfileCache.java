@@ -0,0 +1,62 @@
+package com.tsimura.waterbot.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.exceptions.MessengerIOException;
+import com.github.messenger4j.user.UserProfile;
+import com.github.messenger4j.user.UserProfileClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache in front of {@link UserProfileClient}. Concurrent misses for the same user
+ * wait for a single Graph API call instead of issuing one each.
+ */
+@Slf4j
+@Component
+public class UserProfileCache {
+
+    private final LoadingCache<String, UserProfile> cache;
+
+    @Autowired
+    public UserProfileCache(final UserProfileClient userProfileClient,
+                            @Value("${waterbot.profileCache.maximumSize:10000}") final long maximumSize,
+                            @Value("${waterbot.profileCache.ttlMinutes:60}") final long ttlMinutes) {
+        log.debug("Initializing UserProfileCache - maximumSize: {} | ttlMinutes: {}", maximumSize, ttlMinutes);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build(userProfileClient::queryUserProfile);
+    }
+
+    public UserProfile get(String userId) throws MessengerApiException, MessengerIOException {
+        try {
+            return cache.get(userId);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MessengerApiException) {
+                throw (MessengerApiException) e.getCause();
+            }
+            if (e.getCause() instanceof MessengerIOException) {
+                throw (MessengerIOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+}
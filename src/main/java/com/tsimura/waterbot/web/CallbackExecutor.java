@@ -0,0 +1,79 @@
+package com.tsimura.waterbot.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded worker pool that processes verified callback payloads off the servlet thread.
+ * When the queue is full {@link #submit(Runnable)} refuses the work, so the webhook can answer
+ * with an error and let Facebook redeliver later instead of piling up requests in memory.
+ *
+ * <p>Queued payloads still send messages and record intakes while the queue drains at shutdown, so
+ * this executor is destroyed before the {@code OutboundMessenger} and the {@code IntakeBuffer}.
+ */
+@Slf4j
+@Component
+@DependsOn({"outboundMessenger", "intakeBuffer"})
+public class CallbackExecutor {
+
+    private static final long SHUTDOWN_GRACE_SECONDS = 5;
+
+    private final ThreadPoolExecutor executor;
+    private final long drainTimeoutSeconds;
+
+    @Autowired
+    public CallbackExecutor(@Value("${waterbot.webhook.workers:4}") final int workers,
+                            @Value("${waterbot.webhook.queueCapacity:1000}") final int queueCapacity,
+                            @Value("${waterbot.webhook.drainTimeoutSeconds:30}") final long drainTimeoutSeconds) {
+        log.debug("Initializing CallbackExecutor - workers: {} | queueCapacity: {}", workers, queueCapacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("webhook-"));
+        this.drainTimeoutSeconds = drainTimeoutSeconds;
+    }
+
+    public boolean submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Processing of callback payload failed", e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn("Callback queue is full ({} pending), rejecting payload", executor.getQueue().size());
+            return false;
+        }
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(drainTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("Callback queue was not drained in {}s, dropping {} payloads",
+                    drainTimeoutSeconds, executor.shutdownNow().size());
+            /*
+            * Payloads already running finish before the beans they use are destroyed
+            */
+            if (!executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Callback workers still running after {}s", SHUTDOWN_GRACE_SECONDS);
+            }
+        }
+    }
+
+}
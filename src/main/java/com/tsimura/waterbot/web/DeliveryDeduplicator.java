@@ -0,0 +1,126 @@
+package com.tsimura.waterbot.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently processed webhook events so redeliveries can be dropped. Events are stored as
+ * 64-bit hashes in two open-addressing {@code long[]} tables: new keys go to the current one, lookups
+ * check both, and the tables rotate every half window or when the current one holds {@code capacity}
+ * keys. A key is thus remembered for at least half a window, or, when events arrive faster than
+ * {@code capacity} per half window, until {@code capacity} more keys have been added after it.
+ * Memory is fixed at two tables sized for {@code capacity} keys each. Two different events are taken
+ * for duplicates only on a 64-bit hash collision.
+ */
+@Slf4j
+@Component
+public class DeliveryDeduplicator {
+
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final long rotateAfterNanos;
+
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long rotatedAt;
+
+    @Autowired
+    public DeliveryDeduplicator(@Value("${waterbot.dedup.capacity:100000}") final int capacity,
+                                @Value("${waterbot.dedup.windowMinutes:30}") final long windowMinutes) {
+        log.debug("Initializing DeliveryDeduplicator - capacity: {} | windowMinutes: {}", capacity, windowMinutes);
+        this.capacity = capacity;
+        this.rotateAfterNanos = TimeUnit.MINUTES.toNanos(windowMinutes) / 2;
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+        this.rotatedAt = System.nanoTime();
+    }
+
+    /**
+     * Returns true the first time the event is seen: keyed by its message id, or by its sender and
+     * timestamp if it has none.
+     */
+    public boolean firstSeen(WebhookEvent event) {
+        return event.getMid() != null ? firstSeen(event.getMid()) : firstSeen(event.getSenderId(), event.getTimestamp());
+    }
+
+    /**
+     * Returns true the first time a message id is seen within the window.
+     */
+    public boolean firstSeen(String mid) {
+        return firstSeen(hash(mid, 0));
+    }
+
+    /**
+     * Returns true the first time a sender and timestamp pair is seen; used for events without a message id.
+     */
+    public boolean firstSeen(String senderId, long timestamp) {
+        return firstSeen(hash(senderId, mix(timestamp)));
+    }
+
+    private synchronized boolean firstSeen(long key) {
+        long now = System.nanoTime();
+        if (now - rotatedAt >= rotateAfterNanos || currentSize >= capacity) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, EMPTY);
+            previous = current;
+            current = recycled;
+            currentSize = 0;
+            rotatedAt = now;
+        }
+        if (contains(previous, key)) {
+            return false;
+        }
+        int mask = current.length - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            if (current[i] == key) {
+                return false;
+            }
+            if (current[i] == EMPTY) {
+                current[i] = key;
+                currentSize++;
+                return true;
+            }
+        }
+    }
+
+    private static boolean contains(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = (int) key & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    * FNV-1a over the chars followed by a murmur3 finalizer; never returns EMPTY
+    */
+    private static long hash(String value, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+}
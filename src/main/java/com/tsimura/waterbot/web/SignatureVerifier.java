@@ -0,0 +1,78 @@
+package com.tsimura.waterbot.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * Verifies the {@code X-Hub-Signature} header ({@code sha1=<hex>}) Facebook attaches to every callback.
+ * Kept separate from the receive client so that a payload can be verified on the servlet thread
+ * and processed later on a worker. A payload read in chunks can be fed to {@link #start()} as it arrives.
+ */
+@Slf4j
+@Component
+public class SignatureVerifier {
+
+    private static final String ALGORITHM = "HmacSHA1";
+    private static final String SIGNATURE_PREFIX = "sha1=";
+
+    private final ThreadLocal<Mac> mac;
+
+    @Autowired
+    public SignatureVerifier(@Value("${messenger4j.appSecret}") final String appSecret) {
+        final SecretKeySpec key = new SecretKeySpec(appSecret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(ALGORITHM);
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not initialize " + ALGORITHM, e);
+            }
+        });
+    }
+
+    public boolean isValid(String payload, String signature) {
+        Mac digest = start();
+        digest.update(payload.getBytes(StandardCharsets.UTF_8));
+        return isValid(digest, signature);
+    }
+
+    /**
+     * Mac of the calling thread, reset. Feed it the payload and pass it to {@link #isValid(Mac, String)}
+     * on the same thread.
+     */
+    public Mac start() {
+        Mac digest = mac.get();
+        digest.reset();
+        return digest;
+    }
+
+    public boolean isValid(Mac digest, String signature) {
+        byte[] expected = digest.doFinal();
+        if (signature == null || !signature.startsWith(SIGNATURE_PREFIX)
+                || signature.length() != SIGNATURE_PREFIX.length() + 2 * expected.length) {
+            return false;
+        }
+        /*
+        * Compares every byte whatever the first mismatch, like MessageDigest.isEqual
+        */
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int high = Character.digit(signature.charAt(SIGNATURE_PREFIX.length() + 2 * i), 16);
+            int low = Character.digit(signature.charAt(SIGNATURE_PREFIX.length() + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            difference |= (expected[i] & 0xff) ^ ((high << 4) | low);
+        }
+        return difference == 0;
+    }
+
+}
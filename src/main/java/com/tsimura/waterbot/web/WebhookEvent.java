@@ -0,0 +1,22 @@
+package com.tsimura.waterbot.web;
+
+import lombok.Value;
+
+/**
+ * One messaging event of a callback, with only the fields the bot's handlers use.
+ * {@code mid} and {@code text} are null for postbacks, {@code payload} is null for text messages.
+ */
+@Value
+public class WebhookEvent {
+
+    public enum Type { TEXT, QUICK_REPLY, POSTBACK }
+
+    Type type;
+    String senderId;
+    String recipientId;
+    long timestamp;
+    String mid;
+    String text;
+    String payload;
+
+}
@@ -0,0 +1,313 @@
+package com.tsimura.waterbot.web;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a callback body once into a per-thread buffer, feeding the signature check as the bytes arrive,
+ * then walks it with a streaming parser straight into {@link WebhookEvent}s. Nothing of the payload is
+ * kept but the strings the events carry. Events are picked like messenger4j does: echoes and messages
+ * without text are skipped, a message with a quick reply is a quick reply.
+ *
+ * <p>The signature can only be checked once the whole body is in, so a body larger than
+ * {@code waterbot.webhook.maxBodyBytes} is refused while it is being read.
+ */
+@Component
+public class WebhookReader {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /*
+    * A buffer grown for a larger payload is dropped afterwards instead of staying with the thread
+    */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final SignatureVerifier signatureVerifier;
+    private final int maxBodyBytes;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    @Autowired
+    public WebhookReader(final SignatureVerifier signatureVerifier,
+                         @Value("${waterbot.webhook.maxBodyBytes:1048576}") final int maxBodyBytes) {
+        this.signatureVerifier = signatureVerifier;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Events of the callback, or null if {@code signature} does not match the body.
+     *
+     * @throws JsonParseException if the body is not valid JSON
+     * @throws BodyTooLargeException if the body is larger than {@code maxBodyBytes}
+     */
+    public List<WebhookEvent> read(InputStream body, String signature) throws IOException {
+        Mac digest = signatureVerifier.start();
+        ByteBuffer payload = fill(body, digest);
+        if (!signatureVerifier.isValid(digest, signature)) {
+            return null;
+        }
+        return parse(payload.array(), payload.limit());
+    }
+
+    /**
+     * The body as a string, for payloads handed to the messenger4j receive client.
+     *
+     * @throws BodyTooLargeException if the body is larger than {@code maxBodyBytes}
+     */
+    public String readString(InputStream body) throws IOException {
+        ByteBuffer payload = fill(body, null);
+        return new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8);
+    }
+
+    /*
+    * Reads the body into the thread's buffer, feeding the digest if there is one
+    */
+    private ByteBuffer fill(InputStream body, Mac digest) throws IOException {
+        byte[] buffer = buffers.get();
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (length > maxBodyBytes) {
+                    throw new BodyTooLargeException(maxBodyBytes);
+                }
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxBodyBytes + 1));
+            }
+            int read = body.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            if (digest != null) {
+                digest.update(buffer, length, read);
+            }
+            length += read;
+        }
+        if (length > maxBodyBytes) {
+            throw new BodyTooLargeException(maxBodyBytes);
+        }
+        if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+            buffers.set(buffer);
+        }
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    List<WebhookEvent> parse(byte[] buffer, int length) throws IOException {
+        List<WebhookEvent> events = new ArrayList<>(1);
+        try (JsonParser parser = JSON_FACTORY.createParser(buffer, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Callback payload is not an object");
+            }
+            Messaging messaging = new Messaging();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "entry".equals(field)) {
+                    while (nextElement(parser)) {
+                        readEntry(parser, messaging, events);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return events;
+    }
+
+    private static void readEntry(JsonParser parser, Messaging messaging, List<WebhookEvent> events) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && "messaging".equals(field)) {
+                while (nextElement(parser)) {
+                    messaging.clear();
+                    readMessaging(parser, messaging);
+                    WebhookEvent event = messaging.toEvent();
+                    if (event != null) {
+                        events.add(event);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void readMessaging(JsonParser parser, Messaging messaging) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "sender":
+                    messaging.senderId = readId(parser);
+                    break;
+                case "recipient":
+                    messaging.recipientId = readId(parser);
+                    break;
+                case "timestamp":
+                    messaging.timestamp = value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : 0;
+                    break;
+                case "message":
+                    messaging.message = value == JsonToken.START_OBJECT;
+                    readMessage(parser, messaging);
+                    break;
+                case "postback":
+                    messaging.postback = value == JsonToken.START_OBJECT;
+                    messaging.payload = readPayload(parser);
+                    break;
+                default:
+                    break;
+            }
+            /*
+            * Skips values of unknown fields and values of an unexpected type
+            */
+            parser.skipChildren();
+        }
+    }
+
+    private static void readMessage(JsonParser parser, Messaging messaging) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "mid":
+                    messaging.mid = parser.getValueAsString();
+                    break;
+                case "text":
+                    messaging.text = parser.getValueAsString();
+                    break;
+                case "is_echo":
+                    messaging.echo = parser.getValueAsBoolean();
+                    break;
+                case "quick_reply":
+                    messaging.payload = readPayload(parser);
+                    break;
+                default:
+                    break;
+            }
+            parser.skipChildren();
+        }
+    }
+
+    /*
+    * The "payload" field of the object at the current token
+    */
+    private static String readPayload(JsonParser parser) throws IOException {
+        return readField(parser, "payload");
+    }
+
+    /*
+    * The "id" field of the object at the current token
+    */
+    private static String readId(JsonParser parser) throws IOException {
+        return readField(parser, "id");
+    }
+
+    private static String readField(JsonParser parser, String name) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            boolean wanted = name.equals(parser.getCurrentName());
+            parser.nextToken();
+            if (wanted) {
+                value = parser.getValueAsString();
+            }
+            parser.skipChildren();
+        }
+        return value;
+    }
+
+    /*
+    * Moves to the next object of the current array, skipping elements that are not objects.
+    * Returns false at the end of the array
+    */
+    private static boolean nextElement(JsonParser parser) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+            if (token == JsonToken.START_OBJECT) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /*
+    * Fields of the messaging object being read, reused for every event of a payload
+    */
+    private static final class Messaging {
+
+        String senderId;
+        String recipientId;
+        long timestamp;
+        boolean message;
+        boolean postback;
+        boolean echo;
+        String mid;
+        String text;
+        String payload;
+
+        void clear() {
+            senderId = null;
+            recipientId = null;
+            timestamp = 0;
+            message = false;
+            postback = false;
+            echo = false;
+            mid = null;
+            text = null;
+            payload = null;
+        }
+
+        WebhookEvent toEvent() {
+            if (senderId == null) {
+                return null;
+            }
+            if (message && !echo) {
+                if (payload != null) {
+                    return new WebhookEvent(WebhookEvent.Type.QUICK_REPLY, senderId, recipientId, timestamp, mid, text, payload);
+                }
+                if (text != null) {
+                    return new WebhookEvent(WebhookEvent.Type.TEXT, senderId, recipientId, timestamp, mid, text, null);
+                }
+            }
+            if (postback) {
+                return new WebhookEvent(WebhookEvent.Type.POSTBACK, senderId, recipientId, timestamp, null, null, payload);
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * The callback body is larger than {@code waterbot.webhook.maxBodyBytes}.
+     */
+    public static class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(int maxBodyBytes) {
+            super("Callback body is larger than " + maxBodyBytes + " bytes");
+        }
+
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.tsimura.waterbot.web.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Send, Attachment Upload and User Profile endpoints of the Graph API, so load
+ * tests never reach Facebook. Enabled by the graph-stub profile, which also points waterbot.graph.url
+ * at it. Every call waits for the configured latency, fails with the configured error rate and is
+ * answered with the rate limit error above the configured calls per second. Sends to recipients whose
+ * id starts with the configured blocked prefix fail as if the user had blocked the page. The time of
+ * the last send to each recipient is kept for the load driver.
+ */
+@Slf4j
+@Profile("graph-stub")
+@RestController
+@RequestMapping("/graph-stub")
+public class GraphApiStandIn {
+
+    /*
+    * Graph API error codes: temporary server error, page rate limit and user unavailable
+    */
+    private static final int ERROR_TEMPORARY = 2;
+    private static final int ERROR_RATE_LIMIT = 613;
+    private static final int ERROR_USER_UNAVAILABLE = 551;
+
+    private final long latencyMillis;
+    private final double errorRate;
+    private final int callsPerSecond;
+    private final String blockedPrefix;
+
+    private final Map<String, Long> lastSendMillis = new ConcurrentHashMap<>();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger callsThisSecond = new AtomicInteger();
+
+    @Autowired
+    public GraphApiStandIn(@Value("${waterbot.graphStub.latencyMillis:50}") final long latencyMillis,
+                           @Value("${waterbot.graphStub.errorRate:0}") final double errorRate,
+                           @Value("${waterbot.graphStub.callsPerSecond:0}") final int callsPerSecond,
+                           @Value("${waterbot.graphStub.blockedPrefix:}") final String blockedPrefix) {
+        log.info("Initializing GraphApiStandIn - latencyMillis: {} | errorRate: {} | callsPerSecond: {} | blockedPrefix: {}",
+                latencyMillis, errorRate, callsPerSecond, blockedPrefix);
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.callsPerSecond = callsPerSecond;
+        this.blockedPrefix = blockedPrefix;
+    }
+
+    @PostMapping("/v2.8/me/messages")
+    public ResponseEntity<Map<String, Object>> send(@RequestBody final Map<String, Object> request) {
+        ResponseEntity<Map<String, Object>> failure = simulateCall();
+        if (failure != null) {
+            return failure;
+        }
+
+        String recipientId = String.valueOf(((Map<?, ?>) request.get("recipient")).get("id"));
+        if (!blockedPrefix.isEmpty() && recipientId.startsWith(blockedPrefix)) {
+            return error(HttpStatus.BAD_REQUEST, ERROR_USER_UNAVAILABLE, "This person isn't available right now.");
+        }
+        lastSendMillis.put(recipientId, System.currentTimeMillis());
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("recipient_id", recipientId);
+        response.put("message_id", "mid.stub." + messageIds.incrementAndGet());
+        if (isReusableAttachment(request.get("message"))) {
+            response.put("attachment_id", Long.toString(messageIds.incrementAndGet()));
+        }
+        return ResponseEntity.ok(response);
+    }
+
+    @PostMapping("/v2.8/me/message_attachments")
+    public ResponseEntity<Map<String, Object>> uploadAttachment(@RequestBody final Map<String, Object> request) {
+        ResponseEntity<Map<String, Object>> failure = simulateCall();
+        if (failure != null) {
+            return failure;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("attachment_id", Long.toString(messageIds.incrementAndGet()));
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/v2.8/{userId}")
+    public ResponseEntity<Map<String, Object>> userProfile(@PathVariable final String userId) {
+        ResponseEntity<Map<String, Object>> failure = simulateCall();
+        if (failure != null) {
+            return failure;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("first_name", "Load");
+        response.put("last_name", userId);
+        response.put("profile_pic", "https://localhost/" + userId + ".jpg");
+        response.put("locale", "en_US");
+        response.put("timezone", 0);
+        response.put("gender", "female");
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Epoch millis of the last message sent to every recipient since the last reset.
+     */
+    @GetMapping("/recipients")
+    public Map<String, Long> recipients() {
+        return lastSendMillis;
+    }
+
+    @DeleteMapping("/recipients")
+    public void resetRecipients() {
+        lastSendMillis.clear();
+    }
+
+    private ResponseEntity<Map<String, Object>> simulateCall() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (callsPerSecond > 0 && !withinRateLimit()) {
+            return error(HttpStatus.BAD_REQUEST, ERROR_RATE_LIMIT, "Calls to this api have exceeded the rate limit.");
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, ERROR_TEMPORARY, "An unexpected error has occurred. Please retry your request later.");
+        }
+        return null;
+    }
+
+    private boolean withinRateLimit() {
+        long second = System.currentTimeMillis() / 1000;
+        long current = currentSecond.get();
+        if (current != second && currentSecond.compareAndSet(current, second)) {
+            callsThisSecond.set(0);
+        }
+        return callsThisSecond.incrementAndGet() <= callsPerSecond;
+    }
+
+    private static boolean isReusableAttachment(Object message) {
+        if (!(message instanceof Map)) {
+            return false;
+        }
+        Object attachment = ((Map<?, ?>) message).get("attachment");
+        Object payload = attachment instanceof Map ? ((Map<?, ?>) attachment).get("payload") : null;
+        return payload instanceof Map && Boolean.TRUE.equals(((Map<?, ?>) payload).get("is_reusable"));
+    }
+
+    private static ResponseEntity<Map<String, Object>> error(HttpStatus status, int code, String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("message", message);
+        error.put("type", "OAuthException");
+        error.put("code", code);
+        error.put("fbtrace_id", "stub");
+        Map<String, Object> body = new HashMap<>();
+        body.put("error", error);
+        return ResponseEntity.status(status).body(body);
+    }
+
+}
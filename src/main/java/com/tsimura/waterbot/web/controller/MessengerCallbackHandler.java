@@ -1,17 +1,19 @@
 package com.tsimura.waterbot.web.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.github.messenger4j.MessengerPlatform;
-import com.github.messenger4j.exceptions.MessengerApiException;
-import com.github.messenger4j.exceptions.MessengerIOException;
-import com.github.messenger4j.exceptions.MessengerVerificationException;
 import com.github.messenger4j.receive.MessengerReceiveClient;
 import com.github.messenger4j.receive.handlers.PostbackEventHandler;
 import com.github.messenger4j.receive.handlers.QuickReplyMessageEventHandler;
 import com.github.messenger4j.receive.handlers.TextMessageEventHandler;
-import com.github.messenger4j.send.MessengerSendClient;
-import com.github.messenger4j.send.QuickReply;
-import com.github.messenger4j.send.SenderAction;
-import com.tsimura.waterbot.service.BotService;
+import com.tsimura.waterbot.conversation.ConversationEngine;
+import com.tsimura.waterbot.conversation.IntentMatcher;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import com.tsimura.waterbot.web.CallbackExecutor;
+import com.tsimura.waterbot.web.DeliveryDeduplicator;
+import com.tsimura.waterbot.web.SignatureVerifier;
+import com.tsimura.waterbot.web.WebhookEvent;
+import com.tsimura.waterbot.web.WebhookReader;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -19,7 +21,9 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.Date;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 
 import static com.github.messenger4j.MessengerPlatform.*;
 import static com.tsimura.waterbot.Constants.*;
@@ -30,22 +34,45 @@ import static com.tsimura.waterbot.Constants.*;
 public class MessengerCallbackHandler {
 
     private final MessengerReceiveClient receiveClient;
-    private final MessengerSendClient sendClient;
-    private final BotService botService;
+    private final ConversationEngine conversationEngine;
+    private final IntentMatcher intentMatcher;
+    private final SignatureVerifier signatureVerifier;
+    private final CallbackExecutor callbackExecutor;
+    private final DeliveryDeduplicator deduplicator;
+    private final WebhookReader webhookReader;
+    private final BotMetrics metrics;
+    private final boolean async;
+    private final boolean streaming;
 
     @Autowired
     public MessengerCallbackHandler(@Value("${messenger4j.appSecret}") final String appSecret,
                                     @Value("${messenger4j.verifyToken}") final String verifyToken,
-                                    final MessengerSendClient sendClient,
-                                    final BotService botService) {
-        log.debug("Initializing MessengerReceiveClient - appSecret: {} | verifyToken: {}", appSecret, verifyToken);
+                                    @Value("${waterbot.webhook.async:false}") final boolean async,
+                                    @Value("${waterbot.webhook.streaming:true}") final boolean streaming,
+                                    final ConversationEngine conversationEngine,
+                                    final IntentMatcher intentMatcher,
+                                    final SignatureVerifier signatureVerifier,
+                                    final CallbackExecutor callbackExecutor,
+                                    final DeliveryDeduplicator deduplicator,
+                                    final WebhookReader webhookReader,
+                                    final BotMetrics metrics) {
+        log.debug("Initializing MessengerReceiveClient - appSecret: {} | verifyToken: {} | async: {} | streaming: {}",
+                appSecret, verifyToken, async, streaming);
         this.receiveClient = MessengerPlatform.newReceiveClientBuilder(appSecret, verifyToken)
+                .disableSignatureVerification()
                 .onTextMessageEvent(newTextMessageEventHandler())
                 .onPostbackEvent(newPostbackEventHandler())
                 .onQuickReplyMessageEvent(newQuickReplyMessageEventHandler())
                 .build();
-        this.sendClient = sendClient;
-        this.botService = botService;
+        this.conversationEngine = conversationEngine;
+        this.intentMatcher = intentMatcher;
+        this.signatureVerifier = signatureVerifier;
+        this.callbackExecutor = callbackExecutor;
+        this.deduplicator = deduplicator;
+        this.webhookReader = webhookReader;
+        this.metrics = metrics;
+        this.async = async;
+        this.streaming = streaming;
     }
 
     @GetMapping
@@ -62,16 +89,51 @@ public class MessengerCallbackHandler {
         }
     }
 
+    /**
+     * With {@code waterbot.webhook.streaming} the body is read and verified in one pass and parsed straight
+     * into {@link WebhookEvent}s; otherwise it is read as a string and handed to the messenger4j receive client.
+     * Either way a body larger than {@code waterbot.webhook.maxBodyBytes} is refused before its signature is checked.
+     */
     @PostMapping
-    public ResponseEntity<Void> handleCallback(@RequestBody final String payload,
-                                               @RequestHeader(SIGNATURE_HEADER_NAME) final String signature) {
+    public ResponseEntity<Void> handleCallback(final InputStream body,
+                                               @RequestHeader(SIGNATURE_HEADER_NAME) final String signature) throws IOException {
+        List<WebhookEvent> events;
         try {
-            this.receiveClient.processCallbackPayload(payload, signature);
-            return ResponseEntity.status(HttpStatus.OK).build();
-        } catch (MessengerVerificationException e) {
+            if (!streaming) {
+                return handleCallback(webhookReader.readString(body), signature);
+            }
+            events = webhookReader.read(body, signature);
+        } catch (WebhookReader.BodyTooLargeException e) {
             log.warn("Processing of callback payload failed: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        } catch (JsonProcessingException e) {
+            log.warn("Processing of callback payload failed: {}", e.getOriginalMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        if (events == null) {
+            log.warn("Processing of callback payload failed: signature is not valid");
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        return process(() -> events.forEach(this::handle));
+    }
+
+    private ResponseEntity<Void> handleCallback(String payload, String signature) {
+        if (!signatureVerifier.isValid(payload, signature)) {
+            log.warn("Processing of callback payload failed: signature is not valid");
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
+        return process(() -> this.receiveClient.processCallbackPayload(payload));
+    }
+
+    private ResponseEntity<Void> process(Runnable task) {
+        if (!async) {
+            task.run();
+            return ResponseEntity.status(HttpStatus.OK).build();
+        }
+        if (!callbackExecutor.submit(task)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.status(HttpStatus.OK).build();
     }
 
     @GetMapping("/me")
@@ -82,175 +144,112 @@ public class MessengerCallbackHandler {
     private TextMessageEventHandler newTextMessageEventHandler() {
         return event -> {
             log.debug("Received TextMessageEvent: {}", event);
-
-            final String messageId = event.getMid();
-            final String messageText = event.getText();
-            final String senderId = event.getSender().getId();
-            final Date timestamp = event.getTimestamp();
-
-            log.info("Received message '{}' with text '{}' from user '{}' at '{}'",
-                    messageId, messageText, senderId, timestamp);
-
-            try {
-                switch (messageText.toLowerCase()) {
-                    case "hi":
-                    case "hello":
-                    case "hey":
-                        sendClient.sendTextMessage(senderId, HELLO_MESSAGES.get((int)(HELLO_MESSAGES.size() * Math.random())));
-                        break;
-                    case "start":
-                        getStarted(senderId);
-                        break;
-                    default:
-                        sendClient.sendTextMessage(senderId, String.format(MESSAGE_DEFAULT_ANSWER, botService.getUserName(senderId)));
-                        break;
-                }
-            } catch (MessengerApiException | MessengerIOException e) {
-                handleSendException(e);
-            }
+            handleText(new WebhookEvent(WebhookEvent.Type.TEXT, event.getSender().getId(), event.getRecipient().getId(),
+                    event.getTimestamp().getTime(), event.getMid(), event.getText(), null));
         };
     }
 
     private QuickReplyMessageEventHandler newQuickReplyMessageEventHandler() {
         return event -> {
             log.debug("Received QuickReplyEvent: {}, {}", event);
-
-            final String senderId = event.getSender().getId();
-            final String payload = event.getQuickReply().getPayload();
-
-            try {
-                switch (payload) {
-                    case PAYLOAD_GET_STARTED:
-                        getStarted(senderId);
-                        break;
-                    case PAYLOAD_START:
-                        start(senderId);
-                        break;
-                    case PAYLOAD_CAD_1:
-                    case PAYLOAD_CAD_3:
-                    case PAYLOAD_CAD_6:
-                    case PAYLOAD_CAD_DONT_COUNT:
-                        processCupsADay(senderId, payload);
-                        break;
-                    case PAYLOAD_FRQ_1:
-                        processFrequency(senderId, 1);
-                        break;
-                    case PAYLOAD_FRQ_2:
-                        processFrequency(senderId, 2);
-                        break;
-                    case PAYLOAD_FRQ_3:
-                        processFrequency(senderId, 3);
-                        break;
-                    case PAYLOAD_DONE_1:
-                    case PAYLOAD_DONE_3:
-                    case PAYLOAD_DONE_6:
-                    case PAYLOAD_DONE_8:
-                        sendClient.sendTextMessage(senderId, "Thanks! :) progress saved");
-                        break;
-                    case PAYLOAD_BTN_DONE:
-                        sendClient.sendImageAttachment(senderId, IMG_SATISFIED);
-                        sendClient.sendTextMessage(senderId, String.format("Well done %s! Keep it up!", botService.getUserName(senderId)));
-                        break;
-                    default:
-                        log.warn("No scenario for quickReply payload = {}", payload);
-                        sendClient.sendSenderAction(senderId, SenderAction.MARK_SEEN);
-                        break;
-                }
-            } catch (MessengerApiException | MessengerIOException e) {
-                handleSendException(e);
-            }
+            handleQuickReply(new WebhookEvent(WebhookEvent.Type.QUICK_REPLY, event.getSender().getId(), event.getRecipient().getId(),
+                    event.getTimestamp().getTime(), event.getMid(), event.getText(), event.getQuickReply().getPayload()));
         };
     }
 
     private PostbackEventHandler newPostbackEventHandler() {
-        return event -> {
-            final String senderId = event.getSender().getId();
-            final String recipientId = event.getRecipient().getId();
-            final String payload = event.getPayload();
-            final Date timestamp = event.getTimestamp();
-
-            log.info("Received postback for user '{}' and page '{}' with payload '{}' at '{}'",
-                    senderId, recipientId, payload, timestamp);
+        return event -> handlePostback(new WebhookEvent(WebhookEvent.Type.POSTBACK, event.getSender().getId(), event.getRecipient().getId(),
+                event.getTimestamp().getTime(), null, null, event.getPayload()));
+    }
 
-            try {
-                switch (payload) {
-                    case PAYLOAD_GET_STARTED:
-                        getStarted(senderId);
-                        break;
-                    case PAYLOAD_START:
-                        start(senderId);
-                        break;
-                    default:
-                        log.warn("No scenario for postback payload = {}", payload);
-                        break;
-                }
-            } catch (MessengerApiException | MessengerIOException e) {
-                handleSendException(e);
-            }
-        };
+    private void handle(WebhookEvent event) {
+        switch (event.getType()) {
+            case TEXT:
+                handleText(event);
+                break;
+            case QUICK_REPLY:
+                handleQuickReply(event);
+                break;
+            case POSTBACK:
+                handlePostback(event);
+                break;
+        }
     }
 
-    private void processFrequency(String senderId, int frequency) throws MessengerApiException, MessengerIOException {
-        botService.setReminder(senderId, frequency);
+    private void handleText(WebhookEvent event) {
+        final String messageId = event.getMid();
+        final String messageText = event.getText();
+        final String senderId = event.getSenderId();
 
-        sendClient.sendTextMessage(senderId, "Noted :) Let's give it a try now");
-        sendClient.sendTextMessage(senderId, "Drink 1 cup of water and press the button",
-                QuickReply.newListBuilder()
-                        .addTextQuickReply("Done", PAYLOAD_BTN_DONE).toList()
-                        .build());
-    }
+        log.info("Received message '{}' with text '{}' from user '{}' at '{}'",
+                messageId, messageText, senderId, event.getTimestamp());
 
-    private void processCupsADay(String senderId, String payload) throws MessengerApiException, MessengerIOException {
-        switch (payload) {
-            case PAYLOAD_CAD_1:
-            case PAYLOAD_CAD_DONT_COUNT:
-                sendClient.sendImageAttachment(senderId, IMG_DISAPPOINTED);
-                break;
-            case PAYLOAD_CAD_3:
-                sendClient.sendImageAttachment(senderId, IMG_NOT_SATISFIED);
-                break;
-            case PAYLOAD_CAD_6:
-                sendClient.sendImageAttachment(senderId, IMG_SATISFIED);
-                sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-                sendClient.sendTextMessage(senderId, MESSAGE_GOOD_FREQUENCY);
-                sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-                sendClient.sendTextMessage(senderId, MESSAGE_SET_DAILY_REMINDER,
-                        QuickReply.newListBuilder()
-                                .addTextQuickReply("Once a day", PAYLOAD_FRQ_1).toList()
-                                .build());
-                return;
+        if (!deduplicator.firstSeen(event)) {
+            dropDuplicate("text", messageId);
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+        String intent = intentMatcher.match(messageText);
+        if (intent == null) {
+            intent = INTENT_DEFAULT;
+        }
+        try {
+            conversationEngine.dispatch(senderId, intent);
+        } finally {
+            metrics.timer("handler.text", intent).recordSince(startedAt);
         }
-        sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-        sendClient.sendTextMessage(senderId, MESSAGE_RECOMMENDED_AMOUNT);
-        sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-        sendClient.sendTextMessage(senderId, MESSAGE_CHOOSE_FREQUENCY,
-                QuickReply.newListBuilder()
-                        .addTextQuickReply("3 times a day", PAYLOAD_FRQ_3).toList()
-                        .addTextQuickReply("Twice a day", PAYLOAD_FRQ_2).toList()
-                        .addTextQuickReply("Once a day", PAYLOAD_FRQ_1).toList()
-                        .build());
     }
 
-    private void start(String senderId) throws MessengerApiException, MessengerIOException {
-        sendClient.sendTextMessage(senderId, MESSAGE_BEFORE_WE_BEGIN);
-        sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-        sendClient.sendTextMessage(senderId, MESSAGE_CUPS_A_DAY,
-                QuickReply.newListBuilder()
-                        .addTextQuickReply("1-2 cups", PAYLOAD_CAD_1).toList()
-                        .addTextQuickReply("3-5 cups", PAYLOAD_CAD_3).toList()
-                        .addTextQuickReply("6 and more", PAYLOAD_CAD_6).toList()
-                        .addTextQuickReply("I don't count", PAYLOAD_CAD_DONT_COUNT).toList()
-                        .build());
+    private void handleQuickReply(WebhookEvent event) {
+        final String senderId = event.getSenderId();
+        final String payload = event.getPayload();
+
+        if (!deduplicator.firstSeen(event)) {
+            dropDuplicate("quick_reply", event.getMid());
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+        String scenario = payload;
+        try {
+            if (!conversationEngine.dispatch(senderId, payload)) {
+                log.warn("No scenario for quickReply payload = {}", payload);
+                scenario = "unknown";
+                conversationEngine.markSeen(senderId);
+            }
+        } finally {
+            metrics.timer("handler.quick_reply", scenario).recordSince(startedAt);
+        }
     }
 
-    private void getStarted(String senderId) throws MessengerApiException, MessengerIOException {
-        sendClient.sendTextMessage(senderId, String.format(MESSAGE_GREETING, botService.getUserName(senderId)));
-        sendClient.sendSenderAction(senderId, SenderAction.TYPING_ON);
-        sendClient.sendTextMessage(senderId, MESSAGE_GET_STARTED, QuickReply.newListBuilder().addTextQuickReply("Let's Start!", PAYLOAD_START).toList().build());
+    private void handlePostback(WebhookEvent event) {
+        final String senderId = event.getSenderId();
+        final String payload = event.getPayload();
+
+        log.info("Received postback for user '{}' and page '{}' with payload '{}' at '{}'",
+                senderId, event.getRecipientId(), payload, event.getTimestamp());
+
+        if (!deduplicator.firstSeen(event)) {
+            dropDuplicate("postback", senderId);
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+        String scenario = payload;
+        try {
+            if (!conversationEngine.dispatch(senderId, payload)) {
+                log.warn("No scenario for postback payload = {}", payload);
+                scenario = "unknown";
+            }
+        } finally {
+            metrics.timer("handler.postback", scenario).recordSince(startedAt);
+        }
     }
 
-    private void handleSendException(Exception e) {
-        log.error("Message could not be sent. An unexpected error occurred.", e);
+    private void dropDuplicate(String eventType, String id) {
+        log.info("Dropping redelivered {} event '{}'", eventType, id);
+        metrics.counter("webhook.duplicates", eventType).increment();
     }
 
 }
@@ -0,0 +1,60 @@
+CREATE TABLE IF NOT EXISTS users (
+    user_id VARCHAR(64) PRIMARY KEY,
+    frequency INT NOT NULL
+);
+
+ALTER TABLE users ADD COLUMN IF NOT EXISTS timezone REAL;
+ALTER TABLE users ADD COLUMN IF NOT EXISTS timezone_updated_at TIMESTAMP;
+ALTER TABLE users ADD COLUMN IF NOT EXISTS updated_at TIMESTAMP NOT NULL DEFAULT now();
+
+DROP INDEX IF EXISTS users_timezone_idx;
+CREATE INDEX IF NOT EXISTS users_updated_idx ON users (updated_at);
+
+CREATE TABLE IF NOT EXISTS intake_log (
+    id BIGSERIAL PRIMARY KEY,
+    user_id VARCHAR(64) NOT NULL,
+    cups INT NOT NULL,
+    recorded_at TIMESTAMP NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS intake_log_user_idx ON intake_log (user_id, recorded_at);
+
+CREATE TABLE IF NOT EXISTS intake_daily (
+    user_id VARCHAR(64) NOT NULL,
+    day DATE NOT NULL,
+    cups INT NOT NULL,
+    answers INT NOT NULL,
+    PRIMARY KEY (user_id, day)
+);
+
+CREATE TABLE IF NOT EXISTS intake_weekly (
+    user_id VARCHAR(64) NOT NULL,
+    week_start DATE NOT NULL,
+    cups INT NOT NULL,
+    answers INT NOT NULL,
+    PRIMARY KEY (user_id, week_start)
+);
+
+CREATE INDEX IF NOT EXISTS intake_weekly_week_idx ON intake_weekly (week_start);
+
+CREATE TABLE IF NOT EXISTS scheduler_nodes (
+    node_id VARCHAR(128) PRIMARY KEY,
+    heartbeat_at TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS shard_leases (
+    shard INT PRIMARY KEY,
+    owner VARCHAR(128) NOT NULL,
+    expires_at TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS shard_progress (
+    shard INT PRIMARY KEY,
+    delivered_through BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS attachments (
+    url VARCHAR(512) PRIMARY KEY,
+    attachment_id VARCHAR(64) NOT NULL,
+    uploaded_at TIMESTAMP NOT NULL
+);
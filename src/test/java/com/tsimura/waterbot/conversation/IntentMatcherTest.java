@@ -0,0 +1,137 @@
+package com.tsimura.waterbot.conversation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.tsimura.waterbot.Constants.INTENT_HELLO;
+import static com.tsimura.waterbot.Constants.INTENT_START;
+import static com.tsimura.waterbot.Constants.PHRASES_BY_INTENT;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IntentMatcherTest {
+
+    private final IntentMatcher matcher = new IntentMatcher();
+
+    @Test
+    public void matchesNormalizedMessages() {
+        assertThat(matcher.match("Hiii!!")).isEqualTo(INTENT_HELLO);
+        assertThat(matcher.match("helllo there")).isEqualTo(INTENT_HELLO);
+        assertThat(matcher.match("goood mornin")).isNull();
+        assertThat(matcher.match("GOOD MORNING :)")).isEqualTo(INTENT_HELLO);
+        assertThat(matcher.match("hey👋")).isEqualTo(INTENT_HELLO);
+        assertThat(matcher.match("Let’s go")).isEqualTo(INTENT_START);
+        assertThat(matcher.match("Get Started")).isEqualTo(INTENT_START);
+        assertThat(matcher.match("menu?")).isEqualTo(INTENT_START);
+    }
+
+    @Test
+    public void matchesWholeWordsOnly() {
+        assertThat(matcher.match("this")).isNull();
+        assertThat(matcher.match("shine")).isNull();
+        assertThat(matcher.match("startup")).isNull();
+        assertThat(matcher.match("you")).isNull();
+        assertThat(matcher.match("héllo")).isNull();
+        assertThat(matcher.match("")).isNull();
+        assertThat(matcher.match("   ")).isNull();
+    }
+
+    @Test
+    public void prefersIntentListedFirst() {
+        assertThat(matcher.match("hi, start")).isEqualTo(INTENT_START);
+        assertThat(matcher.match("hello and restart pls")).isEqualTo(INTENT_START);
+    }
+
+    @Test
+    public void findsOverlappingPhrases() {
+        Map<String, List<String>> phrases = new LinkedHashMap<>();
+        phrases.put("first", Arrays.asList("she sells", "a b c d"));
+        phrases.put("second", Arrays.asList("he", "b c", "sells sea"));
+        IntentMatcher overlapping = new IntentMatcher(phrases);
+
+        assertThat(overlapping.match("she sells sea shells")).isEqualTo("first");
+        assertThat(overlapping.match("she sell sea")).isNull();
+        assertThat(overlapping.match("he sells sea")).isEqualTo("second");
+        assertThat(overlapping.match("a b c e")).isEqualTo("second");
+        assertThat(overlapping.match("a b c d")).isEqualTo("first");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesPhraseWithoutLetters() {
+        new IntentMatcher(singleIntent("?!"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNonAsciiPhrase() {
+        new IntentMatcher(singleIntent("héllo"));
+    }
+
+    @Test
+    public void agreesWithBruteForceOnRandomMessages() {
+        String[] words = {"hi", "hello", "hey", "start", "get", "started", "good", "morning", "this", "yo", "you",
+                "lets", "go", "let's", "restart", "xx", "héllo", "!", "  ", "strat", "menu", "begin", "over", "howdy"};
+        Random random = new Random(1);
+        for (int n = 0; n < 50000; n++) {
+            StringBuilder message = new StringBuilder();
+            int length = random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                String word = words[random.nextInt(words.length)];
+                if (random.nextInt(4) == 0) {
+                    word = word.toUpperCase();
+                }
+                if (random.nextInt(5) == 0) {
+                    word = word + word.charAt(word.length() - 1);
+                }
+                message.append(word).append(random.nextInt(3) == 0 ? "," : random.nextInt(5) == 0 ? "" : " ");
+            }
+
+            String text = message.toString();
+            assertThat(matcher.match(text)).as("'%s'", text).isEqualTo(bruteForce(text));
+        }
+    }
+
+    /*
+    * First intent with a phrase occurring in the message, both normalized as documented on IntentMatcher
+    */
+    private static String bruteForce(String text) {
+        String normalized = normalize(text);
+        for (Map.Entry<String, List<String>> intent : PHRASES_BY_INTENT.entrySet()) {
+            for (String phrase : intent.getValue()) {
+                if (normalized.contains(normalize(phrase))) {
+                    return intent.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(" ");
+        char previous = ' ';
+        for (char c : text.toCharArray()) {
+            if (c == '\'' || c == '’') {
+                continue;
+            }
+            char folded = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ';
+            if (folded != previous) {
+                previous = folded;
+                normalized.append(folded);
+            }
+        }
+        if (previous != ' ') {
+            normalized.append(' ');
+        }
+        return normalized.toString();
+    }
+
+    private static Map<String, List<String>> singleIntent(String phrase) {
+        Map<String, List<String>> phrases = new LinkedHashMap<>();
+        phrases.put("intent", Arrays.asList(phrase));
+        return phrases;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.MessengerPlatform;
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.github.messenger4j.send.MessengerSendClient;
+import com.sun.net.httpserver.HttpServer;
+import com.tsimura.waterbot.data.AttachmentRepository;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class AttachmentRegistryTest {
+
+    private static final String URL = "https://example.com/water.png";
+
+    /*
+    * Stand-in Graph API answering with the queued responses, status first
+    */
+    private HttpServer server;
+    private final Queue<Object[]> responses = new ArrayDeque<>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    private final Map<String, String> savedIds = new HashMap<>();
+    private final List<String> deletedIds = new ArrayList<>();
+
+    private MessengerSendClient sendClient;
+    private AttachmentRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            Object[] response = responses.poll();
+            byte[] body = ((String) response[1]).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders((Integer) response[0], body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        ResilientHttpClient httpClient = new ResilientHttpClient("http://localhost:" + server.getAddress().getPort(),
+                2000, 10000, 1, 1, 1, 20, 30000, new SubscriberRegistry(null, null, 16, 1000), new BotMetrics());
+        sendClient = MessengerPlatform.newSendClientBuilder("token").httpClient(httpClient).build();
+
+        savedIds.put(URL, "known-id");
+        registry = new AttachmentRegistry(new AttachmentRepository(null) {
+            @Override
+            public Map<String, String> getAttachmentIds() {
+                return savedIds;
+            }
+
+            @Override
+            public void saveAttachmentId(String url, String attachmentId) {
+                savedIds.put(url, attachmentId);
+            }
+
+            @Override
+            public void deleteAttachmentId(String url, String attachmentId) {
+                deletedIds.add(attachmentId);
+                savedIds.remove(url, attachmentId);
+            }
+        }, null, httpClient);
+        registry.load();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void keepsIdWhenRecipientIsGone() throws Exception {
+        responses.add(new Object[]{400, error("No matching user found", 2018001)});
+
+        try {
+            registry.sendImage(sendClient, "42", URL);
+            fail("Expected the Send API error");
+        } catch (MessengerApiException e) {
+            assertThat(e.getCode()).isEqualTo(100);
+        }
+
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0)).contains("known-id");
+        assertThat(deletedIds).isEmpty();
+
+        responses.add(new Object[]{200, "{\"recipient_id\":\"43\",\"message_id\":\"mid.1\"}"});
+        registry.sendImage(sendClient, "43", URL);
+        assertThat(requests.get(1)).contains("known-id");
+    }
+
+    @Test
+    public void sendsByUrlWhenIdIsRejected() throws Exception {
+        responses.add(new Object[]{400, error("Invalid attachment id", null)});
+        responses.add(new Object[]{200, "{\"recipient_id\":\"42\",\"message_id\":\"mid.1\",\"attachment_id\":\"new-id\"}"});
+
+        registry.sendImage(sendClient, "42", URL);
+
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(1)).contains(URL).doesNotContain("known-id");
+        assertThat(deletedIds).containsExactly("known-id");
+        assertThat(savedIds).containsEntry(URL, "new-id");
+    }
+
+    private static String error(String message, Integer subcode) {
+        return "{\"error\":{\"message\":\"(#100) " + message + "\",\"type\":\"OAuthException\",\"code\":100"
+                + (subcode != null ? ",\"error_subcode\":" + subcode : "") + "}}";
+    }
+
+}
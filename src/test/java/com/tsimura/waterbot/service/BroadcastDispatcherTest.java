@@ -0,0 +1,91 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.exceptions.MessengerApiException;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BroadcastDispatcherTest {
+
+    private final BroadcastDispatcher dispatcher = new BroadcastDispatcher(2, 1000, 3, 1, 60);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void retriesOnlyThrottledStep() {
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger throttles = new AtomicInteger(2);
+
+        BroadcastReport report = dispatcher.dispatch("test", Collections.singletonList("user"), recipient -> Arrays.asList(
+                () -> calls.add("image"),
+                () -> {
+                    calls.add("text");
+                    if (throttles.getAndDecrement() > 0) {
+                        throw apiException(613);
+                    }
+                }));
+
+        assertThat(calls).containsExactly("image", "text", "text", "text");
+        assertThat(report.getSent()).isEqualTo(1);
+        assertThat(report.getFailed()).isEqualTo(0);
+    }
+
+    @Test
+    public void failsRecipientOnceRetriesAreUsedUp() {
+        AtomicInteger calls = new AtomicInteger();
+
+        BroadcastReport report = dispatcher.dispatch("test", Collections.singletonList("user"), recipient -> Collections.singletonList(() -> {
+            calls.incrementAndGet();
+            throw apiException(613);
+        }));
+
+        assertThat(calls.get()).isEqualTo(4);
+        assertThat(report.getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    public void countsRuntimeExceptionsAsFailed() {
+        BroadcastReport report = dispatcher.dispatch("test", Arrays.asList("ok", "broken", "ok", "broken"), recipient -> {
+            if (recipient.equals("broken")) {
+                throw new IllegalStateException("broken task");
+            }
+            return Collections.singletonList(() -> {
+            });
+        });
+
+        assertThat(report.getSubmitted()).isEqualTo(4);
+        assertThat(report.getSent()).isEqualTo(2);
+        assertThat(report.getFailed()).isEqualTo(2);
+    }
+
+    @Test
+    public void countsRecipientsWithoutStepsAsSkipped() {
+        AtomicInteger calls = new AtomicInteger();
+
+        BroadcastReport report = dispatcher.dispatch("test", Arrays.asList("due", "not due", "due"), recipient ->
+                recipient.equals("due") ? Collections.singletonList(calls::incrementAndGet) : Collections.emptyList());
+
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(report.getSubmitted()).isEqualTo(3);
+        assertThat(report.getSent()).isEqualTo(2);
+        assertThat(report.getSkipped()).isEqualTo(1);
+        assertThat(report.getFailed()).isEqualTo(0);
+    }
+
+    private static MessengerApiException apiException(int code) {
+        return MessengerApiException.fromJson(new JsonParser()
+                .parse("{\"error\":{\"message\":\"throttled\",\"type\":\"OAuthException\",\"code\":" + code + "}}").getAsJsonObject());
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.tsimura.waterbot.service;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        assertThat(breaker.onFailure(0)).isFalse();
+        assertThat(breaker.onFailure(0)).isFalse();
+        assertThat(breaker.onFailure(0)).isTrue();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire(999)).isFalse();
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        breaker.onSuccess();
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire(0)).isTrue();
+    }
+
+    @Test
+    public void letsSingleTrialThroughOnceOpenPeriodIsOver() {
+        open(0);
+
+        assertThat(breaker.tryAcquire(1000)).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire(1000)).isFalse();
+    }
+
+    @Test
+    public void closesWhenTrialSucceeds() {
+        open(0);
+        breaker.tryAcquire(1000);
+
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire(1000)).isTrue();
+    }
+
+    @Test
+    public void reopensForAnotherPeriodWhenTrialFails() {
+        open(0);
+        breaker.tryAcquire(1000);
+
+        assertThat(breaker.onFailure(1000)).isTrue();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire(1999)).isFalse();
+        assertThat(breaker.tryAcquire(2000)).isTrue();
+    }
+
+    @Test
+    public void failuresWhileOpenDoNotExtendPeriod() {
+        open(0);
+
+        assertThat(breaker.onFailure(500)).isFalse();
+
+        assertThat(breaker.tryAcquire(1000)).isTrue();
+    }
+
+    private void open(long now) {
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(now);
+        }
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.tsimura.waterbot.service;
+
+import com.github.messenger4j.common.MessengerHttpClient.HttpMethod;
+import com.tsimura.waterbot.metrics.BotMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ResilientHttpClientTest {
+
+    /*
+    * Accepts connections and never answers, so every call ends in a read timeout
+    */
+    private ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<Socket> accepted = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    synchronized (accepted) {
+                        accepted.add(socket);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        synchronized (accepted) {
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void doesNotRetryPostThatTimedOutReading() throws Exception {
+        try {
+            client("http://localhost:" + server.getLocalPort()).execute(HttpMethod.POST, GraphApiHttpClient.FACEBOOK_GRAPH_URL + "/me/messages", "{}");
+            fail("Expected a read timeout");
+        } catch (SocketTimeoutException e) {
+            assertThat(connections.get()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void retriesGetThatTimedOutReading() throws Exception {
+        try {
+            client("http://localhost:" + server.getLocalPort()).execute(HttpMethod.GET, GraphApiHttpClient.FACEBOOK_GRAPH_URL + "/42", null);
+            fail("Expected a read timeout");
+        } catch (SocketTimeoutException e) {
+            assertThat(connections.get()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void retriesPostThatCouldNotConnect() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        BotMetrics metrics = new BotMetrics();
+        ResilientHttpClient client = new ResilientHttpClient("http://localhost:" + closedPort, 200, 10000, 3, 1, 1, 20, 30000, null, metrics);
+
+        try {
+            client.execute(HttpMethod.POST, GraphApiHttpClient.FACEBOOK_GRAPH_URL + "/me/messages", "{}");
+            fail("Expected a connect failure");
+        } catch (GraphApiHttpClient.NotSentException e) {
+            assertThat(metrics.counter("graph.retries", "io").sum()).isEqualTo(2L);
+        }
+    }
+
+    private static ResilientHttpClient client(String graphUrl) {
+        return new ResilientHttpClient(graphUrl, 200, 10000, 3, 1, 1, 20, 30000, null, new BotMetrics());
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.tsimura.waterbot.service;
+
+import com.tsimura.waterbot.data.ShardLeaseRepository;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardCoordinatorTest {
+
+    /*
+    * Leases of this node only, every claim succeeds
+    */
+    private final Set<Integer> leases = new TreeSet<>();
+    private final List<Integer> released = new ArrayList<>();
+    private int liveNodes = 1;
+
+    private final ShardCoordinator coordinator = new ShardCoordinator(new ShardLeaseRepository(null) {
+        @Override
+        public long getDatabaseTimeMillis() {
+            return System.currentTimeMillis() + 60000;
+        }
+
+        @Override
+        public void heartbeat(String nodeId) {
+        }
+
+        @Override
+        public int countLiveNodes(int ttlSeconds) {
+            return liveNodes;
+        }
+
+        @Override
+        public List<Integer> renewLeases(String nodeId, int ttlSeconds) {
+            return new ArrayList<>(leases);
+        }
+
+        @Override
+        public boolean claimLease(int shard, String nodeId, int ttlSeconds) {
+            return leases.add(shard);
+        }
+
+        @Override
+        public void releaseLease(int shard, String nodeId) {
+            leases.remove(shard);
+            released.add(shard);
+        }
+
+        @Override
+        public Long getDeliveredThrough(int shard) {
+            return null;
+        }
+    }, 4, 90);
+
+    @Test
+    public void keepsLeaseOfShardGivenUpUntilRunReleasesIt() {
+        coordinator.rebalance();
+        assertThat(coordinator.getOwnedShards()).containsExactly(0, 1, 2, 3);
+
+        liveNodes = 2;
+        coordinator.rebalance();
+
+        assertThat(coordinator.getOwnedShards()).containsExactly(2, 3);
+        assertThat(leases).containsExactly(0, 1, 2, 3);
+        assertThat(released).isEmpty();
+
+        coordinator.rebalance();
+        assertThat(coordinator.getOwnedShards()).containsExactly(2, 3);
+
+        coordinator.releaseGivenUp();
+
+        assertThat(released).containsExactly(0, 1);
+        assertThat(leases).containsExactly(2, 3);
+        coordinator.releaseGivenUp();
+        assertThat(released).hasSize(2);
+    }
+
+    @Test
+    public void tellsTimeOnDatabaseClock() {
+        coordinator.rebalance();
+
+        assertThat(coordinator.currentTimeMillis() - System.currentTimeMillis()).isBetween(59000L, 61000L);
+    }
+
+}
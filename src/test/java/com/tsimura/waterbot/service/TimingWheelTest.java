@@ -0,0 +1,94 @@
+package com.tsimura.waterbot.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest {
+
+    /*
+    * Spans of 40, 160, 640 and 2560 ms, so the deadlines below sit on up to four levels
+    */
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 4;
+
+    @Test
+    public void firesItemsOfEveryLevelInTheirTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, 0);
+        long[] deadlines = {15, 39, 40, 55, 170, 639, 700, 1000, 2559, 2560, 3001};
+        for (long deadline : deadlines) {
+            assertThat(wheel.schedule("item-" + deadline, deadline)).isTrue();
+        }
+        assertThat(wheel.size()).isEqualTo(deadlines.length);
+
+        Map<String, Long> firedAt = new HashMap<>();
+        for (long now = TICK; now <= 4000; now += TICK) {
+            long time = now;
+            wheel.advance(now, (item, deadline) -> assertThat(firedAt.put(item, time)).isNull());
+        }
+
+        for (long deadline : deadlines) {
+            assertThat(firedAt.get("item-" + deadline)).as("item-" + deadline).isEqualTo(deadline - deadline % TICK);
+        }
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    public void refusesDeadlineInCurrentTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, 1003);
+
+        assertThat(wheel.schedule("late", 990)).isFalse();
+        assertThat(wheel.schedule("now", 1009)).isFalse();
+        assertThat(wheel.schedule("next", 1010)).isTrue();
+        assertThat(wheel.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void matchesBruteForceForRandomDeadlinesAndSteps() {
+        Random random = new Random(42);
+        long start = 7;
+        TimingWheel<Integer> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, start);
+        List<Long> pending = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long deadline = start + TICK + random.nextInt(50000);
+            wheel.schedule(i, deadline);
+            pending.add(deadline);
+        }
+
+        Map<Integer, Long> remaining = new HashMap<>();
+        for (int i = 0; i < pending.size(); i++) {
+            remaining.put(i, pending.get(i));
+        }
+        long now = start;
+        while (!remaining.isEmpty()) {
+            now += 1 + random.nextInt(300);
+            long time = now;
+            List<Integer> expected = new ArrayList<>();
+            remaining.forEach((item, deadline) -> {
+                if (deadline - deadline % TICK <= time) {
+                    expected.add(item);
+                }
+            });
+
+            List<Integer> fired = new ArrayList<>();
+            List<Long> firedTicks = new ArrayList<>();
+            wheel.advance(now, (item, deadline) -> {
+                assertThat(deadline).isEqualTo(pending.get(item));
+                fired.add(item);
+                firedTicks.add(deadline - deadline % TICK);
+            });
+
+            assertThat(fired).as("fired by %d", now).hasSameElementsAs(expected).hasSameSizeAs(expected);
+            assertThat(firedTicks).isSorted();
+            fired.forEach(remaining::remove);
+            assertThat(wheel.size()).isEqualTo(remaining.size());
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.tsimura.waterbot.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+
+    @Test
+    public void grantsCapacityWithoutWaiting() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 10);
+
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire(1);
+        }
+
+        assertThat(elapsedMillis(startedAt)).isLessThan(500);
+    }
+
+    @Test
+    public void waitsForRefillOnceEmpty() throws Exception {
+        TokenBucket bucket = new TokenBucket(20, 2);
+        bucket.acquire(2);
+
+        long startedAt = System.nanoTime();
+        bucket.acquire(2);
+
+        assertThat(elapsedMillis(startedAt)).isGreaterThanOrEqualTo(90);
+    }
+
+    @Test
+    public void pauseHoldsCallersBackAndEmptiesBucket() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+
+        long startedAt = System.nanoTime();
+        bucket.pause(200);
+        bucket.acquire(1);
+
+        assertThat(elapsedMillis(startedAt)).isGreaterThanOrEqualTo(200);
+    }
+
+    @Test
+    public void shorterPauseDoesNotCutLongerOneShort() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+
+        long startedAt = System.nanoTime();
+        bucket.pause(200);
+        bucket.pause(10);
+        bucket.acquire(1);
+
+        assertThat(elapsedMillis(startedAt)).isGreaterThanOrEqualTo(200);
+    }
+
+    private static long elapsedMillis(long startedAt) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.tsimura.waterbot.web;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeliveryDeduplicatorTest {
+
+    private final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(4, 30);
+
+    @Test
+    public void dropsRedeliveredMessage() {
+        assertThat(deduplicator.firstSeen("mid.1")).isTrue();
+        assertThat(deduplicator.firstSeen("mid.2")).isTrue();
+        assertThat(deduplicator.firstSeen("mid.1")).isFalse();
+    }
+
+    @Test
+    public void keysEventsWithoutMessageIdBySenderAndTimestamp() {
+        WebhookEvent event = text(null, 1000);
+
+        assertThat(deduplicator.firstSeen(event)).isTrue();
+        assertThat(deduplicator.firstSeen(text(null, 1000))).isFalse();
+        assertThat(deduplicator.firstSeen(text(null, 1001))).isTrue();
+    }
+
+    @Test
+    public void keysEventsWithMessageIdByMessageId() {
+        assertThat(deduplicator.firstSeen(text("mid.1", 1000))).isTrue();
+        assertThat(deduplicator.firstSeen(text("mid.1", 2000))).isFalse();
+        assertThat(deduplicator.firstSeen(text("mid.2", 1000))).isTrue();
+    }
+
+    @Test
+    public void remembersKeysForAnotherCapacityAfterFullTableRotates() {
+        for (int i = 1; i <= 4; i++) {
+            assertThat(deduplicator.firstSeen("mid." + i)).isTrue();
+        }
+        assertThat(deduplicator.firstSeen("mid.5")).isTrue();
+        assertThat(deduplicator.firstSeen("mid.1")).isFalse();
+
+        for (int i = 6; i <= 8; i++) {
+            assertThat(deduplicator.firstSeen("mid." + i)).isTrue();
+        }
+        assertThat(deduplicator.firstSeen("mid.9")).isTrue();
+        assertThat(deduplicator.firstSeen("mid.1")).isTrue();
+        assertThat(deduplicator.firstSeen("mid.5")).isFalse();
+    }
+
+    private static WebhookEvent text(String mid, long timestamp) {
+        return new WebhookEvent(WebhookEvent.Type.TEXT, "42", "1", timestamp, mid, "hello", null);
+    }
+
+}
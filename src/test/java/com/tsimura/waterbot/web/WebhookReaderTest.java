@@ -0,0 +1,78 @@
+package com.tsimura.waterbot.web;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WebhookReaderTest {
+
+    private static final String APP_SECRET = "secret";
+
+    private static final String PAYLOAD = "{\"object\":\"page\",\"entry\":[{\"id\":\"1\",\"time\":1,\"messaging\":[" +
+            "{\"sender\":{\"id\":\"42\"},\"recipient\":{\"id\":\"1\"},\"timestamp\":1000," +
+            "\"message\":{\"mid\":\"mid.1\",\"text\":\"hello\"}}]}]}";
+
+    private final WebhookReader reader = new WebhookReader(new SignatureVerifier(APP_SECRET), 1024);
+
+    @Test
+    public void readsEventsOfSignedBody() throws Exception {
+        List<WebhookEvent> events = reader.read(body(PAYLOAD), sign(PAYLOAD));
+
+        assertThat(events).containsExactly(
+                new WebhookEvent(WebhookEvent.Type.TEXT, "42", "1", 1000, "mid.1", "hello", null));
+    }
+
+    @Test
+    public void refusesTamperedBody() throws Exception {
+        String tampered = PAYLOAD.replace("hello", "hellO");
+
+        assertThat(reader.read(body(tampered), sign(PAYLOAD))).isNull();
+    }
+
+    @Test
+    public void refusesMalformedSignature() throws Exception {
+        String signature = sign(PAYLOAD);
+
+        assertThat(reader.read(body(PAYLOAD), null)).isNull();
+        assertThat(reader.read(body(PAYLOAD), signature.substring(5))).isNull();
+        assertThat(reader.read(body(PAYLOAD), signature + "0")).isNull();
+        assertThat(reader.read(body(PAYLOAD), signature.substring(0, signature.length() - 1) + "g")).isNull();
+    }
+
+    @Test
+    public void acceptsUppercaseHexSignature() throws Exception {
+        assertThat(reader.read(body(PAYLOAD), "sha1=" + sign(PAYLOAD).substring(5).toUpperCase())).hasSize(1);
+    }
+
+    @Test(expected = WebhookReader.BodyTooLargeException.class)
+    public void refusesBodyLargerThanLimit() throws Exception {
+        StringBuilder payload = new StringBuilder("{\"padding\":\"");
+        while (payload.length() < 2048) {
+            payload.append("x");
+        }
+        payload.append("\"}");
+
+        reader.read(body(payload.toString()), sign(payload.toString()));
+    }
+
+    private static ByteArrayInputStream body(String payload) {
+        return new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sign(String payload) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(APP_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+        StringBuilder signature = new StringBuilder("sha1=");
+        for (byte b : mac.doFinal(payload.getBytes(StandardCharsets.UTF_8))) {
+            signature.append(String.format("%02x", b));
+        }
+        return signature.toString();
+    }
+
+}